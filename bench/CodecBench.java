@@ -0,0 +1,114 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.LinkedList;
+
+/* CodecBench class comparing MessageCodec with Java serialization */
+public class CodecBench{
+    // keeps the results alive so the loops are not optimized away
+    private static long sink = 0;
+
+    /**
+     * print bytes on the wire and encode/decode time of every type
+     *
+     * @param args iterations per measurement, default 200000
+     */
+    public static void main(String args[]) throws Exception{
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        byte[] image = new byte[64 * 1024];
+
+        NewMessage request = new NewMessage("composites/1.jpg", image, "a",
+                                    "1.jpg", MessageType.VOTE_REQUEST);
+        request.addImg("2.jpg");
+        NewMessage vote = new NewMessage("composites/1.jpg", "a", true,
+                                         MessageType.VOTE);
+        NewMessage decision = new NewMessage("composites/1.jpg", "a", true,
+                                             MessageType.DECISION);
+        NewMessage ack = new NewMessage("composites/1.jpg", "a", true,
+                                        MessageType.ACK);
+
+        System.out.printf("%-13s %10s %10s %12s %12s %12s %12s%n", "type",
+                          "java B", "codec B", "java enc ns",
+                          "codec enc ns", "java dec ns", "codec dec ns");
+        for(NewMessage m:new NewMessage[]{request, vote, decision, ack}){
+            // the request carries 64 KB, run it less often
+            int n = m.contents == null ? iterations : iterations / 50;
+            // warm up before the measured run
+            run(m, n / 5, false);
+            run(m, n, true);
+        }
+        if(sink == 42){
+            System.out.println();
+        }
+    }
+
+    private static void run(NewMessage m, int n, boolean report)
+                                                    throws Exception{
+        legacyMessage old = new legacyMessage(m);
+        byte[] javaBytes = javaEncode(old);
+        byte[] codecBytes = MessageCodec.encode(m);
+
+        long t0 = System.nanoTime();
+        for(int i = 0; i < n; i++){
+            sink += javaEncode(old).length;
+        }
+        long t1 = System.nanoTime();
+        for(int i = 0; i < n; i++){
+            sink += MessageCodec.encode(m).length;
+        }
+        long t2 = System.nanoTime();
+        for(int i = 0; i < n; i++){
+            sink += javaDecode(javaBytes).type;
+        }
+        long t3 = System.nanoTime();
+        for(int i = 0; i < n; i++){
+            sink += MessageCodec.decode(codecBytes).type.code;
+        }
+        long t4 = System.nanoTime();
+
+        if(report == false){
+            return;
+        }
+        System.out.printf("%-13s %10d %10d %12.0f %12.0f %12.0f %12.0f%n",
+                          m.type, javaBytes.length, codecBytes.length,
+                          (t1 - t0) / (double)n, (t2 - t1) / (double)n,
+                          (t3 - t2) / (double)n, (t4 - t3) / (double)n);
+    }
+
+    private static byte[] javaEncode(Object obj) throws Exception{
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        try(ObjectOutputStream o = new ObjectOutputStream(b)){
+            o.writeObject(obj);
+        }
+        return b.toByteArray();
+    }
+
+    private static legacyMessage javaDecode(byte[] bytes) throws Exception{
+        try(ObjectInputStream o =
+                    new ObjectInputStream(new ByteArrayInputStream(bytes))){
+            return (legacyMessage)o.readObject();
+        }
+    }
+
+    /* legacyMessage class with the fields NewMessage used to serialize */
+    private static class legacyMessage implements Serializable{
+        private static final long serialVersionUID = 1L;
+        public String filename = null;
+        public byte[] contents = null;
+        public String addr = null;
+        public LinkedList<String> imgs = new LinkedList<>();
+        public boolean vote = false;
+        public int type = 1;
+
+        public legacyMessage(NewMessage m){
+            this.filename = m.filename;
+            this.contents = m.contents;
+            this.addr = m.addr;
+            this.imgs.addAll(m.imgs);
+            this.vote = m.vote;
+            this.type = m.type.code;
+        }
+    }
+}
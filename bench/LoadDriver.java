@@ -0,0 +1,237 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * LoadDriver class for pushing many concurrent collages through the
+ * server and the usernodes on a SimNetwork, run it from an empty
+ * directory: the server writes its log and the collages there and
+ * every usernode gets a subdirectory
+ */
+public class LoadDriver{
+    // number of usernodes
+    public static int users = Integer.getInteger("load.users", 4);
+    // number of users contributing to a collage
+    public static int sources = Integer.getInteger("load.sources", 2);
+    // number of images each user contributes to a collage
+    public static int images = Integer.getInteger("load.images", 1);
+    // size of the collage contents in bytes
+    public static int contentBytes = Integer.getInteger("load.contentBytes",
+                                                        1024);
+    // chance a collage reuses an image of an earlier one and conflicts
+    public static double conflict = Double.parseDouble(
+                                System.getProperty("load.conflict", "0"));
+    // time between two usernode crashes in ms, 0 for no crash
+    public static long crashEveryMs = Long.getLong("load.crashEveryMs", 0L);
+    // time a crashed node stays down in ms
+    public static long downMs = Long.getLong("load.downMs", 500L);
+    // true to let the crashes hit the server as well
+    public static boolean crashServer = Boolean.getBoolean("load.crashServer");
+    // give up waiting for the last collages after this many ms
+    public static long timeoutMs = Long.getLong("load.timeoutMs", 120000L);
+    // seed of the collage contents and the conflicts
+    public static long seed = Long.getLong("load.seed", 15640L);
+
+    // latencies of the collages from startCommit to the decision
+    private static final LatencyHistogram commitTotal =
+                                Metrics.histogram("collage.commitTotal");
+    private static final LatencyHistogram abortTotal =
+                                Metrics.histogram("collage.abortTotal");
+    // time the collages waited for admission
+    private static final LatencyHistogram admissionWait =
+                                Metrics.histogram("admission.wait");
+    // time the recovered collages waited to be resolved
+    private static final LatencyHistogram recoveryDelay =
+                                Metrics.histogram("recovery.delay");
+
+    // the network the nodes run on
+    private final SimNetwork net = new SimNetwork();
+    // ids of the usernodes
+    private final String[] ids = new String[users];
+    // sources handed out recently, the pool conflicts are drawn from
+    private final String[] recent = new String[256];
+    private final Random rnd = new Random(seed);
+
+    /**
+     * start the server and the usernodes
+     */
+    public void start(){
+        net.startServer();
+        for(int i = 0; i < users; i++){
+            ids[i] = "u" + i;
+            File dir = new File(ids[i]);
+            dir.mkdirs();
+            net.startNode(ids[i], dir);
+        }
+        if(crashEveryMs > 0){
+            Thread t = new Thread(this::crashLoop, "load-crash");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * crash a random node every crashEveryMs and restart it from its
+     * log after downMs
+     */
+    private void crashLoop(){
+        Random r = new Random(seed + 1);
+        while(true){
+            LockSupport.parkNanos(
+                        TimeUnit.MILLISECONDS.toNanos(crashEveryMs));
+            boolean server = crashServer && r.nextInt(users + 1) == users;
+            String id = server ? "Server" : ids[r.nextInt(users)];
+            System.out.println("crash " + id);
+            net.crash(id);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(downMs));
+            if(server){
+                net.startServer();
+            }else{
+                net.startNode(id, new File(id));
+            }
+            System.out.println("restart " + id);
+        }
+    }
+
+    /**
+     * make the sources of the next collage and the image files behind
+     * them
+     *
+     * @param n number of the collage
+     * @return sources as user:image
+     */
+    private String[] sourcesOf(int n){
+        List<String> list = new ArrayList<>();
+        int first = rnd.nextInt(users);
+        for(int u = 0; u < sources && u < users; u++){
+            String id = ids[(first + u) % users];
+            for(int k = 0; k < images; k++){
+                String img = "c" + n + "-" + k + ".jpg";
+                try{
+                    new File(id, img).createNewFile();
+                }catch(IOException e){
+                    e.printStackTrace();
+                }
+                list.add(id + ":" + img);
+            }
+        }
+        if(conflict > 0 && rnd.nextDouble() < conflict){
+            String old = recent[rnd.nextInt(recent.length)];
+            if(old != null){
+                list.set(0, old);
+            }
+        }
+        recent[n % recent.length] = list.get(list.size() - 1);
+        return list.toArray(new String[0]);
+    }
+
+    /**
+     * @return collages decided so far
+     */
+    private static long decided(){
+        return commitTotal.getCount() + abortTotal.getCount();
+    }
+
+    /**
+     * start collages as long as fewer than concurrency are undecided,
+     * then wait for the last ones and print the report
+     *
+     * @param total number of collages
+     * @param concurrency collages undecided at once
+     */
+    public void run(int total, int concurrency) throws IOException{
+        Server srv = new Server();
+        byte[] img = new byte[contentBytes];
+        long before = decided();
+        long sentBefore = net.sent.get();
+        long start = System.nanoTime();
+        int started = 0;
+        while(started < total){
+            if(started - (decided() - before) >= concurrency
+               || net.isAlive("Server") == false){
+                LockSupport.parkNanos(100000);
+                continue;
+            }
+            rnd.nextBytes(img);
+            srv.startCommit("c" + started + ".jpg", img.clone(),
+                            sourcesOf(started));
+            started++;
+        }
+        long deadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while(decided() - before < total && System.nanoTime() < deadline){
+            LockSupport.parkNanos(1000000);
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        long commits = commitTotal.getCount();
+        long aborts = abortTotal.getCount();
+        long messages = net.sent.get() - sentBefore;
+
+        System.out.printf("collages=%d committed=%d aborted=%d " +
+                          "undecided=%d time=%.2fs%n", total, commits,
+                          aborts, Math.max(0, total - commits - aborts),
+                          secs);
+        System.out.printf("throughput %.1f commits/s%n", commits / secs);
+        System.out.printf("commit latency p50=%.2fms p99=%.2fms " +
+                          "max=%.2fms%n", commitTotal.percentileMs(0.50),
+                          commitTotal.percentileMs(0.99),
+                          commitTotal.getMaxMs());
+        System.out.printf("admission wait p50=%.2fms p99=%.2fms%n",
+                          admissionWait.percentileMs(0.50),
+                          admissionWait.percentileMs(0.99));
+        if(recoveryDelay.getCount() > 0){
+            System.out.printf("recovered %d collages, delay p50=%.2fms " +
+                              "max=%.2fms%n", recoveryDelay.getCount(),
+                              recoveryDelay.percentileMs(0.50),
+                              recoveryDelay.getMaxMs());
+        }
+        long hits = 0;
+        long misses = 0;
+        for(Map.Entry<String, Number> e:Metrics.snapshot().entrySet()){
+            if(e.getKey().endsWith(".answerHits")){
+                hits += e.getValue().longValue();
+            }
+            else if(e.getKey().endsWith(".answerMisses")){
+                misses += e.getValue().longValue();
+            }
+        }
+        System.out.printf("usernode answer caches: %d hits, %d misses " +
+                          "since their last restart%n", hits, misses);
+        System.out.printf("rejected without messaging: %d behind a " +
+                          "pending collage, %d with committed sources, " +
+                          "%d over the queue limit, %d whose file " +
+                          "exists%n",
+                          Metrics.counter("admission.rejected.pending")
+                              .sum(),
+                          Metrics.counter("admission.rejected.committed")
+                              .sum(),
+                          Metrics.counter("admission.rejected.full").sum(),
+                          Metrics.counter("admission.rejected.exists")
+                              .sum());
+        System.out.printf("messages %d on the wire, %.2f per commit, " +
+                          "%d dropped, %d logical (%.2f per envelope)%n",
+                          messages, messages / (double)Math.max(1, commits),
+                          net.dropped.get(), MessageBatcher.messages.get(),
+                          MessageBatcher.messagesPerEnvelope());
+    }
+
+    public static void main ( String args[] ) throws Exception {
+        if (args.length != 2){
+            throw new Exception("Need args: <collages> <concurrency>");
+        }
+        // the log is written as Server.log.NNNNNN segments
+        if(WriteAheadLog.segments("Server.log").length > 0
+           || new File("Server.ckpt").exists()){
+            throw new Exception("run from an empty directory");
+        }
+        LoadDriver driver = new LoadDriver();
+        driver.start();
+        driver.run(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        System.exit(0);
+    }
+}
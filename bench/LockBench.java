@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* LockBench class comparing the per-collage lock scan with LockTable */
+public class LockBench{
+    // images of one collage on a usernode
+    private static final int IMAGES = 4;
+
+    /**
+     * measure the cost of one vote while many images are locked
+     *
+     * @param args number of locked images, default 10000
+     */
+    public static void main(String args[]){
+        int locked = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int collages = locked / IMAGES;
+
+        // images locked by pending collages, and a few deleted ones
+        Map<String, Set<String>> lock_list = new HashMap<>();
+        Set<String> remove_list = new HashSet<>();
+        LockTable table = new LockTable();
+        for(int c = 0; c < collages; c++){
+            List<String> imgs = images("held", c);
+            lock_list.put("c" + c, new HashSet<>(imgs));
+            table.acquire("c" + c, imgs);
+        }
+        for(int c = 0; c < 16; c++){
+            List<String> imgs = images("gone", c);
+            remove_list.addAll(imgs);
+            table.acquire("g" + c, imgs);
+            table.commit("g" + c);
+        }
+        System.out.println(table.lockedImages() + " images locked");
+
+        for(int round = 0; round < 2; round++){
+            boolean report = round == 1;
+            run("map scan", 2000, report, i -> {
+                List<String> imgs = images("free", i);
+                if(scanConflicts(lock_list, remove_list, imgs)){
+                    return;
+                }
+                lock_list.put("v" + i, new HashSet<>(imgs));
+                lock_list.remove("v" + i);
+            });
+            run("LockTable", 2000000, report, i -> {
+                List<String> imgs = images("free", i);
+                if(table.conflicts("v" + i, imgs)){
+                    return;
+                }
+                table.acquire("v" + i, imgs);
+                table.release("v" + i);
+            });
+            // a request hitting a held image is refused
+            run("LockTable conflict", 2000000, report, i -> {
+                table.conflicts("v" + i, images("held", i % collages));
+            });
+        }
+    }
+
+    /**
+     * the check UserNode ran before LockTable
+     */
+    private static boolean scanConflicts(Map<String, Set<String>> lock_list,
+                                         Set<String> remove_list,
+                                         List<String> imgs){
+        for(String img:imgs){
+            if(remove_list.contains(img)){
+                return true;
+            }
+            for(String filename:lock_list.keySet()){
+                if(lock_list.get(filename).contains(img)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the image names of a collage
+     */
+    private static List<String> images(String prefix, int c){
+        String[] imgs = new String[IMAGES];
+        for(int i = 0; i < IMAGES; i++){
+            imgs[i] = prefix + "-" + c + "-" + i + ".jpg";
+        }
+        return Arrays.asList(imgs);
+    }
+
+    /**
+     * run and time a number of votes
+     */
+    private static void run(String name, int votes, boolean report,
+                            vote op){
+        long start = System.nanoTime();
+        for(int i = 0; i < votes; i++){
+            op.run(i);
+        }
+        if(report){
+            System.out.printf("%-20s %10.1f ns/vote%n", name,
+                              (System.nanoTime() - start) / (double)votes);
+        }
+    }
+
+    /* vote interface for one benchmarked vote */
+    private interface vote{
+        void run(int i);
+    }
+}
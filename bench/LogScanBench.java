@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/* LogScanBench class measuring how fast a large server log is read back */
+public class LogScanBench{
+    // records appended at once, like one group commit
+    private static final int BATCH = 1024;
+
+    /**
+     * write a server log of the given size, scan it, then corrupt one
+     * record and scan it again, run with a heap smaller than the log
+     *
+     * @param args size of the log in MB, default 256
+     */
+    public static void main(String args[]) throws Exception{
+        long mb = args.length > 0 ? Long.parseLong(args[0]) : 256;
+        File dir = Files.createTempDirectory("logscan").toFile();
+        String name = new File(dir, "Server.log").getPath();
+        WriteAheadLog.segmentSize = Long.getLong("wal.segmentSize",
+                                                 64L << 20);
+        try{
+            long written = write(name, mb << 20);
+            System.out.printf("wrote %d records in %d segments%n", written,
+                              WriteAheadLog.segments(name).length);
+
+            // a cold pass pages the segments in, the second one is timed
+            scan(name);
+            long start = System.nanoTime();
+            long read = scan(name);
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("read %d records, %.1f MB/s, %.0f records/s, "
+                              + "max heap %d MB%n", read,
+                              bytes(name) / 1048576.0 / secs, read / secs,
+                              Runtime.getRuntime().maxMemory() >> 20);
+
+            // flip a byte of a record in the middle of the last segment
+            long[] seqs = WriteAheadLog.segments(name);
+            File last = WriteAheadLog.segmentFile(name,
+                                                  seqs[seqs.length - 1]);
+            try(RandomAccessFile raf = new RandomAccessFile(last, "rw")){
+                long at = 4096;
+                raf.seek(at);
+                int b = raf.read();
+                raf.seek(at);
+                raf.write(b ^ 0xff);
+            }
+            System.out.printf("after corrupting %s: %d records%n",
+                              last.getName(), scan(name));
+        }finally{
+            for(File f:dir.listFiles()){
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * append committed collages until the log reaches a size
+     *
+     * @return number of records written
+     */
+    private static long write(String name, long size) throws Exception{
+        WriteAheadLog wal = new WriteAheadLog(name);
+        long written = 0;
+        long bytes = 0;
+        List<LogRecord> batch = new ArrayList<>(BATCH);
+        for(int c = 0; bytes < size; c++){
+            String collage = "collage with spaces " + c + ".jpg";
+            String[] sources = new String[4];
+            for(int i = 0; i < sources.length; i++){
+                sources[i] = "u" + ((c + i) % 64) + ":img " + c + "-" + i
+                             + ".jpg";
+            }
+            batch.add(LogRecord.startCommit(collage, sources));
+            batch.add(LogRecord.decision(collage, c % 5 != 0));
+            batch.add(LogRecord.committed(collage));
+            if(batch.size() >= BATCH){
+                for(LogRecord r:batch){
+                    bytes += WriteAheadLog.frameSize(r);
+                }
+                wal.append(batch);
+                written += batch.size();
+                batch.clear();
+            }
+        }
+        return written;
+    }
+
+    private static long scan(String name){
+        return WriteAheadLog.scan(name, 0, r -> {});
+    }
+
+    /**
+     * @return bytes of the segment files
+     */
+    private static long bytes(String name){
+        long total = 0;
+        for(long s:WriteAheadLog.segments(name)){
+            total += WriteAheadLog.segmentFile(name, s).length();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,77 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/* MemoryBench class comparing the heap a usernode needs per removed image */
+public class MemoryBench{
+    // images of one collage on a usernode
+    private static final int IMAGES = 10;
+
+    private static final MemoryMXBean memory =
+                                    ManagementFactory.getMemoryMXBean();
+
+    /**
+     * measure the heap taken by the removal state of many images
+     *
+     * @param args number of removed images, default 1000000
+     */
+    public static void main(String args[]){
+        int removed = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int collages = removed / IMAGES;
+
+        // the set of names UserNode kept before LockTable
+        long before = used();
+        Set<String> remove_list = new HashSet<>();
+        for(int c = 0; c < collages; c++){
+            remove_list.addAll(images(c));
+        }
+        long setBytes = used() - before;
+        report("HashSet<String>", setBytes, remove_list.size());
+        remove_list = null;
+
+        // the dictionary of removed images in LockTable
+        before = used();
+        LockTable table = new LockTable();
+        for(int c = 0; c < collages; c++){
+            table.acquire("c" + c, images(c));
+            table.commit("c" + c);
+        }
+        long tableBytes = used() - before;
+        report("LockTable", tableBytes, table.deletedImages());
+        System.out.printf("%-20s %10.1f bytes/image in its arrays%n", "",
+                          table.sizeInBytes() / (double)removed);
+        // keep the table reachable until it was measured
+        System.out.println(table.isDeleted(images(0).get(0))
+                           ? "" : "lost an image");
+    }
+
+    /**
+     * @return heap in use after a full collection
+     */
+    private static long used(){
+        for(int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void report(String name, long bytes, long images){
+        System.out.printf("%-20s %10.1f bytes/image, %d images, %.1f MB%n",
+                          name, bytes / (double)images, images,
+                          bytes / 1048576.0);
+    }
+
+    /**
+     * @return the image names of a collage
+     */
+    private static List<String> images(int c){
+        String[] imgs = new String[IMAGES];
+        for(int i = 0; i < IMAGES; i++){
+            imgs[i] = String.format("photo-%07d-%d.jpg", c, i);
+        }
+        return Arrays.asList(imgs);
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+ * SimNetwork class for running the server and the usernodes in one jvm
+ * without the Project4 harness: every node gets an endpoint with the
+ * contract of ProjectLib, messages are delayed, dropped and reordered
+ * on the way, and nodes can crash and come back from their logs
+ */
+public class SimNetwork{
+    // one way delay of a message in ms
+    public static long latencyMs = Long.getLong("sim.latencyMs", 1L);
+    // random extra delay of a message, from 0 to this many ms
+    public static long jitterMs = Long.getLong("sim.jitterMs", 1L);
+    // chance a message is lost
+    public static double loss = Double.parseDouble(
+                                    System.getProperty("sim.loss", "0"));
+    // chance a message is held back so later ones overtake it
+    public static double reorder = Double.parseDouble(
+                                    System.getProperty("sim.reorder", "0"));
+    // time a held back message waits on top of its delay in ms
+    public static long reorderMs = Long.getLong("sim.reorderMs", 20L);
+    // average time a user thinks before answering in ms
+    public static long thinkMs = Long.getLong("sim.thinkMs", 0L);
+    // chance a user approves a collage
+    public static double approve = Double.parseDouble(
+                                    System.getProperty("sim.approve", "1"));
+    // time an fsync takes in ms
+    public static long fsyncMs = Long.getLong("sim.fsyncMs", 1L);
+
+    // messages given to the network
+    public final AtomicLong sent = new AtomicLong();
+    // messages handed to their destination
+    public final AtomicLong delivered = new AtomicLong();
+    // messages lost on the way or sent to a crashed node
+    public final AtomicLong dropped = new AtomicLong();
+    // prompts answered by the simulated users
+    public final AtomicLong prompts = new AtomicLong();
+
+    // the current endpoint of every node
+    private final Map<String, endpoint> endpoints = new ConcurrentHashMap<>();
+    // messages on the way, by time of arrival
+    private final DelayQueue<flight> wire = new DelayQueue<>();
+    // order of the messages sent, breaks ties between equal arrivals
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * SimNetwork constructor, starts the thread moving the messages
+     */
+    public SimNetwork(){
+        Thread t = new Thread(this::carry, "sim-wire");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * start the server on the network, recovering from the log and the
+     * checkpoint in the working directory
+     */
+    public void startServer(){
+        endpoint e = attach("Server");
+        Server.start(e);
+        e.listen(Server::deliver);
+    }
+
+    /**
+     * start a usernode on the network, recovering from its log
+     *
+     * @param id id of the usernode
+     * @param dir directory of its images and log
+     * @return the usernode
+     */
+    public UserNode startNode(String id, File dir){
+        UserNode node = new UserNode(id, dir);
+        endpoint e = attach(id);
+        node.start(e);
+        e.listen(node::deliverMessage);
+        return node;
+    }
+
+    /**
+     * crash a node: it stops sending and receiving messages and its
+     * users stop answering, work already on its threads runs out like
+     * writes the kernel had accepted before a crash
+     *
+     * @param id id of the node
+     */
+    public void crash(String id){
+        endpoint e = endpoints.remove(id);
+        if(e != null){
+            e.alive = false;
+            e.handlerThread.shutdownNow();
+        }
+    }
+
+    /**
+     * @param id id of the node
+     * @return true if the node is up and done recovering
+     */
+    public boolean isAlive(String id){
+        endpoint e = endpoints.get(id);
+        return e != null && e.alive && e.handler != null;
+    }
+
+    /**
+     * give a node a new endpoint, replacing the one of a crashed
+     * incarnation, its messages wait for getMessage until it listens
+     *
+     * @param id id of the node
+     * @return the endpoint
+     */
+    public endpoint attach(String id){
+        endpoint e = new endpoint(id);
+        endpoint old = endpoints.put(id, e);
+        if(old != null){
+            old.alive = false;
+            old.handlerThread.shutdownNow();
+        }
+        return e;
+    }
+
+    /**
+     * put a message on the wire with the delay, loss and reordering
+     * configured
+     */
+    private void transmit(endpoint from, ProjectLib.Message msg){
+        sent.incrementAndGet();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        if(from.alive == false || (loss > 0 && rnd.nextDouble() < loss)){
+            dropped.incrementAndGet();
+            return;
+        }
+        long delay = latencyMs + (jitterMs > 0 ? rnd.nextLong(jitterMs + 1)
+                                               : 0);
+        if(reorder > 0 && rnd.nextDouble() < reorder){
+            delay += reorderMs;
+        }
+        // the receiver sees the address of the sender
+        wire.add(new flight(msg.addr, new ProjectLib.Message(from.id,
+                            msg.body), delay, sequence.incrementAndGet()));
+    }
+
+    /**
+     * hand every message to its destination once its delay is over
+     */
+    private void carry(){
+        while(true){
+            flight f;
+            try{
+                f = wire.take();
+            }catch(InterruptedException e){
+                return;
+            }
+            endpoint dest = endpoints.get(f.dest);
+            if(dest == null || dest.receive(f.msg) == false){
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * sleep without giving up the interrupt status
+     */
+    private static void pause(long ms){
+        if(ms <= 0){
+            return;
+        }
+        try{
+            Thread.sleep(ms);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* endpoint class for the services one incarnation of a node uses */
+    public class endpoint implements NodeLib{
+        // id of the node
+        final String id;
+        // handles the messages of the node one at a time like ProjectLib
+        final ExecutorService handlerThread;
+        // receives the messages, null to queue them
+        volatile Consumer<ProjectLib.Message> handler;
+        // messages waiting for getMessage
+        final BlockingQueue<ProjectLib.Message> inbox =
+                                            new LinkedBlockingQueue<>();
+        // false once the incarnation crashed
+        volatile boolean alive = true;
+
+        endpoint(String id){
+            this.id = id;
+            this.handlerThread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "sim-" + id);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /**
+         * hand the messages to a handler from now on, the ones queued
+         * while the node recovered go first
+         *
+         * @param h receives the messages on the thread of the node
+         */
+        synchronized void listen(Consumer<ProjectLib.Message> h){
+            handler = h;
+            ProjectLib.Message msg;
+            while((msg = inbox.poll()) != null){
+                hand(msg);
+            }
+        }
+
+        /**
+         * @return false if the node is down
+         */
+        synchronized boolean receive(ProjectLib.Message msg){
+            if(alive == false){
+                return false;
+            }
+            if(handler == null){
+                delivered.incrementAndGet();
+                inbox.add(msg);
+                return true;
+            }
+            return hand(msg);
+        }
+
+        /**
+         * run the handler on the thread of the node
+         */
+        private boolean hand(ProjectLib.Message msg){
+            Consumer<ProjectLib.Message> h = handler;
+            try{
+                handlerThread.execute(() -> {
+                    if(alive){
+                        h.accept(msg);
+                    }
+                });
+            }catch(RuntimeException e){
+                // crashed between the check and the hand over
+                return false;
+            }
+            delivered.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void sendMessage(ProjectLib.Message msg){
+            transmit(this, msg);
+        }
+
+        @Override
+        public ProjectLib.Message getMessage(){
+            try{
+                return inbox.take();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public boolean askUser(byte[] img, String[] sources){
+            if(thinkMs > 0){
+                pause(ThreadLocalRandom.current().nextLong(2 * thinkMs + 1));
+            }
+            prompts.incrementAndGet();
+            // nobody answers on a crashed node
+            if(alive == false){
+                return false;
+            }
+            return approve >= 1
+                   || ThreadLocalRandom.current().nextDouble() < approve;
+        }
+
+        @Override
+        public void fsync(){
+            // the files stay in the page cache across a simulated crash,
+            // only the time the disk takes is modelled
+            pause(fsyncMs);
+        }
+    }
+
+    /* flight class for a message on the wire */
+    private static class flight implements Delayed{
+        // address of the destination
+        final String dest;
+        // message with the address of the sender
+        final ProjectLib.Message msg;
+        // arrival time in ns
+        final long at;
+        // order the message was sent in
+        final long seq;
+
+        flight(String dest, ProjectLib.Message msg, long delayMs, long seq){
+            this.dest = dest;
+            this.msg = msg;
+            this.at = System.nanoTime()
+                      + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            this.seq = seq;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit){
+            return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o){
+            flight f = (flight)o;
+            int c = Long.compare(at, f.at);
+            return c != 0 ? c : Long.compare(seq, f.seq);
+        }
+    }
+}
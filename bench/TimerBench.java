@@ -0,0 +1,89 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/* TimerBench class comparing per-collage java.util.Timer with TimerWheel */
+public class TimerBench{
+
+    /**
+     * measure threads and heap for a number of in-flight collages
+     *
+     * @param args number of in-flight collages, default 5000
+     */
+    public static void main(String args[]) throws Exception{
+        int collages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+        // one wheel thread plus its workers exist for the whole process
+        TimerWheel.shared.pending();
+
+        long[] base = sample();
+        List<TimerWheel.Timeout> timeouts = new ArrayList<>();
+        for(int i = 0; i < collages; i++){
+            // the vote and ack timers of a collage
+            timeouts.add(TimerWheel.shared.schedule(() -> {}, 60000));
+            timeouts.add(TimerWheel.shared.schedule(() -> {}, 60000, 60000));
+        }
+        report("TimerWheel", collages, base, sample());
+        for(TimerWheel.Timeout t:timeouts){
+            t.cancel();
+        }
+
+        base = sample();
+        List<Timer> timers = new ArrayList<>();
+        for(int i = 0; i < collages; i++){
+            // the vote and ack timers every collage used to create
+            Timer vote = new Timer();
+            Timer ack = new Timer();
+            vote.schedule(new idleTask(), 60000, 60000);
+            ack.schedule(new idleTask(), 60000, 60000);
+            timers.add(vote);
+            timers.add(ack);
+        }
+        report("java.util.Timer", collages, base, sample());
+        for(Timer t:timers){
+            t.cancel();
+        }
+
+        // schedule and cancel cost on the shared wheel
+        int ops = 1000000;
+        long start = System.nanoTime();
+        for(int i = 0; i < ops; i++){
+            TimerWheel.shared.schedule(() -> {}, 3000).cancel();
+        }
+        System.out.printf("TimerWheel schedule+cancel: %.1f ns/op%n",
+                          (System.nanoTime() - start) / (double)ops);
+    }
+
+    /**
+     * @return live threads and used heap after a gc
+     */
+    private static long[] sample() throws InterruptedException{
+        for(int i = 0; i < 3; i++){
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime rt = Runtime.getRuntime();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        return new long[]{threads, rt.totalMemory() - rt.freeMemory()};
+    }
+
+    /**
+     * print threads and heap per collage, thread stacks are not counted
+     * in the heap and each one reserves -Xss more outside of it
+     */
+    private static void report(String name, int collages,
+                               long[] before, long[] after){
+        System.out.printf("%-16s collages=%d threads=+%d heap/collage=%dB%n",
+                          name, collages, after[0] - before[0],
+                          (after[1] - before[1]) / collages);
+    }
+
+    /* idleTask class for a timer task that never fires in the run */
+    private static class idleTask extends TimerTask{
+        @Override
+        public void run(){
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * AdmissionQueue class for bounding the collages in flight: new collages
+ * wait here until the server and every user of the collage have room,
+ * so a burst is voted on at the pace the users answer instead of
+ * timing out all at once. It also indexes the sources of the collages
+ * in flight and of the ones committed lately, so a collage that could
+ * only be refused by its users is held back or aborted before they are
+ * asked. A collage whose file already exists is aborted as well, the
+ * server only writes and deletes the files of the collages it admits
+ */
+public class AdmissionQueue{
+    // collages in flight at once, 0 for no limit
+    public static int maxInFlight = Integer.getInteger("admit.maxInFlight",
+                                                       256);
+    // collages in flight at once that a single user votes on, 0 for no
+    // limit
+    public static int maxPerUser = Integer.getInteger("admit.maxPerUser",
+                                                      64);
+    // collages waiting at once, more are aborted, 0 for no limit
+    public static int maxQueued = Integer.getInteger("admit.maxQueued",
+                                                     4096);
+    // queued collages looked at for one admission, bounds the search
+    // past collages whose users are busy, the ones looked at in vain go
+    // to the back so the next admission looks deeper
+    public static int maxScan = Integer.getInteger("admit.maxScan", 256);
+    // sources of committed collages remembered, 0 for none, the oldest
+    // are forgotten first and a collage using one is then refused by
+    // its users
+    public static int maxCommitted = Integer.getInteger("admit.maxCommitted",
+                                                        65536);
+    // what to do with a collage sharing a source with one in flight:
+    // "queue" keeps it waiting until that one is done, "reject" aborts
+    // it at once
+    public static String conflictPolicy =
+                            System.getProperty("admit.conflict", "queue");
+
+    // results of looking up the sources of a collage
+    private static final int FREE = 0;
+    private static final int PENDING = 1;
+    private static final int COMMITTED = 2;
+
+    // time the collages waited for admission
+    private static final LatencyHistogram waitTime =
+                                    Metrics.histogram("admission.wait");
+    // time from posting to the abort of the rejected collages
+    private static final LatencyHistogram abortTotal =
+                                    Metrics.histogram("collage.abortTotal");
+    // collages aborted without messaging, by the reason
+    private static final LongAdder rejectedPending =
+                            Metrics.counter("admission.rejected.pending");
+    private static final LongAdder rejectedCommitted =
+                            Metrics.counter("admission.rejected.committed");
+    private static final LongAdder rejectedFull =
+                            Metrics.counter("admission.rejected.full");
+    private static final LongAdder rejectedExists =
+                            Metrics.counter("admission.rejected.exists");
+
+    // collages waiting for admission in arrival order, guarded by this
+    private final ArrayDeque<candidate> waiting = new ArrayDeque<>();
+    // users of the admitted collages by collage, guarded by this
+    private final Map<String, Set<String>> admitted = new HashMap<>();
+    // admitted collages per user, guarded by this
+    private final Map<String, Integer> perUser = new HashMap<>();
+    // sources of the collages in flight by collage, the recovered ones
+    // included, guarded by this
+    private final Map<String, String[]> pinned = new HashMap<>();
+    // collage in flight holding each source, guarded by this
+    private final Map<String, String> holders = new HashMap<>();
+    // sources removed by the latest committed collages, oldest first,
+    // guarded by this
+    private final LinkedHashMap<String, Boolean> committed =
+            new LinkedHashMap<String, Boolean>(){
+                @Override
+                protected boolean removeEldestEntry(
+                                        Map.Entry<String, Boolean> eldest){
+                    return size() > maxCommitted;
+                }
+            };
+    // collages admitted so far
+    private long admissions = 0;
+    // true until the server has replayed its log
+    private boolean holding = true;
+
+    /**
+     * queue a new collage
+     *
+     * @param c the collage
+     * @return the collages admitted now, in arrival order
+     */
+    public synchronized List<candidate> offer(candidate c){
+        if(lookup(c.sources) == COMMITTED){
+            // no user can give the image again, abort without asking
+            reject(c, rejectedCommitted);
+            return new ArrayList<>();
+        }
+        if(new File(c.filename).exists()){
+            // the server writes only the files it owns
+            reject(c, rejectedExists);
+            return new ArrayList<>();
+        }
+        if(maxQueued > 0 && waiting.size() >= maxQueued){
+            // too far behind, abort rather than queue without bound
+            reject(c, rejectedFull);
+            return new ArrayList<>();
+        }
+        waiting.add(c);
+        return admit();
+    }
+
+    /**
+     * free the slots of a collage that is done
+     *
+     * @param filename file name of the collage
+     * @return the collages admitted in its place
+     */
+    public synchronized List<candidate> release(String filename){
+        boolean unpinned = unpin(filename);
+        Set<String> users = admitted.remove(filename);
+        if(users == null && unpinned == false){
+            // never admitted or already released
+            return new ArrayList<>();
+        }
+        if(users != null){
+            for(String user:users){
+                perUser.merge(user, -1, Integer::sum);
+                if(perUser.get(user) <= 0){
+                    perUser.remove(user);
+                }
+            }
+        }
+        return admit();
+    }
+
+    /**
+     * index the sources of a recovered collage, it takes no slot but
+     * new collages sharing a source with it wait or are rejected
+     *
+     * @param filename file name of the collage
+     * @param sources sources of the collage as user:image
+     */
+    public synchronized void recovered(String filename, String[] sources){
+        pin(filename, sources);
+    }
+
+    /**
+     * remember the sources of a committed collage, later collages using
+     * one of them are rejected without asking the users until
+     * maxCommitted newer sources push it out
+     *
+     * @param sources sources of the collage as user:image
+     */
+    public synchronized void committed(String[] sources){
+        for(String source:sources){
+            committed.put(source, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * keep every new collage waiting, while the server recovers
+     */
+    public synchronized void hold(){
+        holding = true;
+    }
+
+    /**
+     * start admitting collages again
+     *
+     * @return the collages admitted now, in arrival order
+     */
+    public synchronized List<candidate> open(){
+        holding = false;
+        return admit();
+    }
+
+    /**
+     * forget the collages admitted by a previous incarnation, the
+     * recovered ones are paced by the recovery instead, and the
+     * committed sources, the replay adds back the ones of its log
+     */
+    public synchronized void clear(){
+        admitted.clear();
+        perUser.clear();
+        pinned.clear();
+        holders.clear();
+        committed.clear();
+    }
+
+    /**
+     * @return sources of committed collages remembered
+     */
+    public synchronized int committedCount(){
+        return committed.size();
+    }
+
+    /**
+     * @return collages waiting for admission
+     */
+    public synchronized int queued(){
+        return waiting.size();
+    }
+
+    /**
+     * @return collages admitted and not released yet
+     */
+    public synchronized int inFlight(){
+        return admitted.size();
+    }
+
+    /**
+     * @return collages admitted so far
+     */
+    public synchronized long getAdmissions(){
+        return admissions;
+    }
+
+    /**
+     * admit waiting collages in arrival order, skipping the ones whose
+     * users have no room, while the server has room
+     */
+    private List<candidate> admit(){
+        List<candidate> ready = new ArrayList<>();
+        if(holding){
+            return ready;
+        }
+        Iterator<candidate> it = waiting.iterator();
+        int scanned = 0;
+        // collages looked at and left waiting, they stay at the front
+        int skipped = 0;
+        while(it.hasNext() && scanned < maxScan
+              && (maxInFlight <= 0 || admitted.size() < maxInFlight)){
+            candidate c = it.next();
+            scanned++;
+            skipped++;
+            if(pinned.containsKey(c.filename)){
+                // still in flight under the same name, keep it waiting
+                continue;
+            }
+            int found = lookup(c.sources);
+            if(found == COMMITTED){
+                // committed while this one waited
+                it.remove();
+                skipped--;
+                reject(c, rejectedCommitted);
+                continue;
+            }
+            if(found == PENDING){
+                if("reject".equals(conflictPolicy)){
+                    it.remove();
+                    skipped--;
+                    reject(c, rejectedPending);
+                }
+                // otherwise wait for the collage holding the source
+                continue;
+            }
+            Set<String> users = usersOf(c.sources);
+            if(hasRoom(users) == false){
+                continue;
+            }
+            it.remove();
+            skipped--;
+            if(new File(c.filename).exists()){
+                // a collage of the same name committed while it waited
+                reject(c, rejectedExists);
+                continue;
+            }
+            take(c.filename, users);
+            pin(c.filename, c.sources);
+            admissions++;
+            waitTime.since(c.enqueuedAt);
+            ready.add(c);
+        }
+        if(scanned >= maxScan && it.hasNext()){
+            // the scan stopped short of the end, move the collages it
+            // left waiting behind the others so none starves
+            for(int i = 0; i < skipped; i++){
+                waiting.addLast(waiting.pollFirst());
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * @return true if every user votes on fewer than maxPerUser collages
+     */
+    private boolean hasRoom(Set<String> users){
+        if(maxPerUser <= 0){
+            return true;
+        }
+        for(String user:users){
+            if(perUser.getOrDefault(user, 0) >= maxPerUser){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * take the slots of a collage
+     */
+    private void take(String filename, Set<String> users){
+        admitted.put(filename, users);
+        for(String user:users){
+            perUser.merge(user, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * @param sources sources of a collage as user:image
+     * @return COMMITTED if a source was removed by a committed collage,
+     *         PENDING if one is held by a collage in flight, else FREE
+     */
+    private int lookup(String[] sources){
+        int found = FREE;
+        for(String source:sources){
+            if(committed.containsKey(source)){
+                return COMMITTED;
+            }
+            if(holders.containsKey(source)){
+                found = PENDING;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * index the sources of a collage in flight
+     */
+    private void pin(String filename, String[] sources){
+        pinned.put(filename, sources);
+        for(String source:sources){
+            holders.put(source, filename);
+        }
+    }
+
+    /**
+     * drop the sources of a collage that is done from the index
+     *
+     * @return true if the collage was in the index
+     */
+    private boolean unpin(String filename){
+        String[] sources = pinned.remove(filename);
+        if(sources == null){
+            return false;
+        }
+        for(String source:sources){
+            holders.remove(source, filename);
+        }
+        return true;
+    }
+
+    /**
+     * abort a collage no user has heard of, nothing is logged since a
+     * collage without a log record was never committed
+     */
+    private void reject(candidate c, LongAdder reason){
+        reason.increment();
+        abortTotal.since(c.enqueuedAt);
+    }
+
+    /**
+     * @param sources sources of a collage as user:image
+     * @return the users of the collage
+     */
+    private static Set<String> usersOf(String[] sources){
+        Set<String> users = new LinkedHashSet<>();
+        for(String source:sources){
+            users.add(source.substring(0, source.indexOf(':')));
+        }
+        return users;
+    }
+
+    /* candidate class for a collage posted to the server */
+    public static class candidate{
+        // file name of the collage
+        final String filename;
+        // image contents of the collage
+        final byte[] img;
+        // sources of the collage as user:image
+        final String[] sources;
+        // time the collage was posted in ns
+        final long enqueuedAt = System.nanoTime();
+
+        public candidate(String f, byte[] i, String[] s){
+            this.filename = f;
+            this.img = i;
+            this.sources = s;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * AnswerCache class for the votes and decisions a usernode answered
+ * lately, a bounded LRU so that a retransmitted vote request or decision
+ * is answered again without the user, the lock table or the log. An
+ * answer belongs to one request, the filename and the images asked for
+ * on this usernode, a new request under the same name starts afresh
+ */
+public class AnswerCache{
+    // collages remembered per usernode, 0 to turn the cache off
+    public static int capacity = Integer.getInteger("usernode.answerCache",
+                                                    4096);
+
+    // answers to the latest request of each collage, least recently
+    // used first, guarded by this
+    private final LinkedHashMap<String, answer> answers =
+            new LinkedHashMap<String, answer>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(
+                                        Map.Entry<String, answer> eldest){
+                    return size() > capacity;
+                }
+            };
+    // requests answered from the cache
+    private final LongAdder hits = new LongAdder();
+    // requests the cache knew nothing about
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * note a vote request that is not answered from the cache, the
+     * answers to an earlier request of the same name are dropped once
+     * it was decided or if it asked for other images
+     *
+     * @param collage filename of the collage
+     * @param imgs images asked for on this usernode
+     */
+    public synchronized void requested(String collage, List<String> imgs){
+        if(stale(answers.get(collage), imgs)){
+            answers.remove(collage);
+        }
+    }
+
+    /**
+     * remember the vote sent for a request
+     *
+     * @param collage filename of the collage
+     * @param imgs images asked for on this usernode
+     * @param vote the vote
+     */
+    public synchronized void voted(String collage, List<String> imgs,
+                                   boolean vote){
+        if(capacity > 0){
+            entry(collage, imgs).vote = vote;
+        }
+    }
+
+    /**
+     * remember the decision acked for the latest request of a collage
+     *
+     * @param collage filename of the collage
+     * @param decision the decision
+     */
+    public synchronized void decided(String collage, boolean decision){
+        answer a = answers.get(collage);
+        if(a != null){
+            a.decision = decision;
+        }
+    }
+
+    /**
+     * look up the vote to resend for a vote request, only a YES vote of
+     * the same request still waiting for its decision is resent: a NO
+     * vote or a decision ends the collage and the server may post a new
+     * one of the same name, the ApprovalCache answers it if nothing
+     * changed
+     *
+     * @param collage filename of the collage
+     * @param imgs images asked for on this usernode
+     * @return the vote sent, null if it must be asked for
+     */
+    public synchronized Boolean vote(String collage, List<String> imgs){
+        answer a = answers.get(collage);
+        if(resendable(a) == false || a.imgs.equals(imgs) == false){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return a.vote;
+    }
+
+    /**
+     * look up the decision to ack again for a decision
+     *
+     * @param collage filename of the collage
+     * @return the decision acked, null if it must be applied
+     */
+    public synchronized Boolean decision(String collage){
+        answer a = answers.get(collage);
+        if(a == null || a.decision == null){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return a.decision;
+    }
+
+    /**
+     * count a duplicate answered by the prompt already running
+     */
+    public void hit(){
+        hits.increment();
+    }
+
+    /**
+     * @param collage filename of the collage
+     * @return true if the vote for the latest request of the collage
+     *         was sent, without counting a hit or a miss
+     */
+    public synchronized boolean hasVote(String collage){
+        return resendable(answers.get(collage));
+    }
+
+    /**
+     * @return requests answered from the cache
+     */
+    public long getHits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return requests the cache knew nothing about
+     */
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return collages remembered
+     */
+    public synchronized int size(){
+        return answers.size();
+    }
+
+    private static boolean resendable(answer a){
+        return a != null && Boolean.TRUE.equals(a.vote)
+               && a.decision == null;
+    }
+
+    /**
+     * @return true if the answers belong to another request than one
+     *         for these images
+     */
+    private static boolean stale(answer a, List<String> imgs){
+        return a != null
+               && (a.decision != null || a.imgs.equals(imgs) == false);
+    }
+
+    /**
+     * @return the answers to a request, new ones if the latest request
+     *         of the collage was another one
+     */
+    private answer entry(String collage, List<String> imgs){
+        answer a = answers.get(collage);
+        if(a == null || stale(a, imgs)){
+            a = new answer(imgs);
+            answers.put(collage, a);
+        }
+        return a;
+    }
+
+    /* answer class for what a usernode told the server about a request */
+    private static class answer{
+        // images asked for on this usernode
+        final List<String> imgs;
+        // vote sent, null if none yet
+        Boolean vote = null;
+        // decision acked, null if none yet
+        Boolean decision = null;
+
+        public answer(List<String> i){
+            this.imgs = new ArrayList<>(i);
+        }
+    }
+}
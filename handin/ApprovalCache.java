@@ -0,0 +1,144 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * ApprovalCache class for the answers a user gave to collages, keyed by
+ * a hash of the contents and the image list, so the same collage posted
+ * again after an abort is answered without asking the user. The answers
+ * are logged by the usernode and expire after a while, a user may change
+ * their mind
+ */
+public class ApprovalCache{
+    // answers remembered per usernode, 0 to turn the cache off
+    public static int capacity = Integer.getInteger("usernode.approvalCache",
+                                                    4096);
+    // time an answer is reused in ms, 0 to turn the cache off
+    public static long ttlMs = Long.getLong("usernode.approvalTtlMs",
+                                            600000L);
+
+    // answers by key, least recently used first, guarded by this
+    private final LinkedHashMap<String, approval> approvals =
+            new LinkedHashMap<String, approval>(16, 0.75f, true){
+                @Override
+                protected boolean removeEldestEntry(
+                                        Map.Entry<String, approval> eldest){
+                    return size() > capacity;
+                }
+            };
+    // prompts answered from the cache
+    private final LongAdder hits = new LongAdder();
+    // prompts sent to the user
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @return true if answers are remembered
+     */
+    public static boolean enabled(){
+        return capacity > 0 && ttlMs > 0;
+    }
+
+    /**
+     * @param contents contents of the collage
+     * @param imgs images of the collage on this usernode, in order
+     * @return key of the collage, SHA-256 of both in hex
+     */
+    public static String key(byte[] contents, List<String> imgs){
+        MessageDigest md;
+        try{
+            md = MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+        md.update(contents);
+        for(String img:imgs){
+            // length first, so no two lists hash the same bytes
+            byte[] b = img.getBytes(StandardCharsets.UTF_8);
+            md.update(new byte[]{(byte)(b.length >>> 24),
+                                 (byte)(b.length >>> 16),
+                                 (byte)(b.length >>> 8), (byte)b.length});
+            md.update(b);
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for(byte b:md.digest()){
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+              .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param key key of the collage
+     * @return the answer of the user, null if the user must be asked
+     */
+    public synchronized Boolean lookup(String key){
+        approval a = approvals.get(key);
+        if(a != null && expired(a.answeredAt)){
+            approvals.remove(key);
+            a = null;
+        }
+        if(a == null){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return a.approved;
+    }
+
+    /**
+     * remember an answer of the user
+     *
+     * @param key key of the collage
+     * @param approved the answer
+     * @param answeredAt wall clock time of the answer in ms
+     */
+    public synchronized void put(String key, boolean approved,
+                                 long answeredAt){
+        if(enabled() == false || expired(answeredAt)){
+            return;
+        }
+        approvals.put(key, new approval(approved, answeredAt));
+    }
+
+    /**
+     * @return prompts answered from the cache
+     */
+    public long getHits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return prompts sent to the user
+     */
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return answers remembered
+     */
+    public synchronized int size(){
+        return approvals.size();
+    }
+
+    private static boolean expired(long answeredAt){
+        return System.currentTimeMillis() - answeredAt >= ttlMs;
+    }
+
+    /* approval class for one answer of the user */
+    private static class approval{
+        // true if the user approved the collage
+        final boolean approved;
+        // wall clock time of the answer in ms
+        final long answeredAt;
+
+        public approval(boolean a, long t){
+            this.approved = a;
+            this.answeredAt = t;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/* Checkpoint class for the snapshot of the in-flight collages */
+public class Checkpoint{
+    // marks a checkpoint file
+    private static final int MAGIC = 0x434b5054;
+
+    // first log segment to replay after the checkpoint
+    public final long segment;
+    // records rebuilding the in-flight collages
+    public final List<LogRecord> records;
+
+    /**
+     * Checkpoint constructor
+     *
+     * @param Segment first log segment to replay
+     * @param Records records rebuilding the in-flight collages
+     */
+    public Checkpoint(long Segment, List<LogRecord> Records){
+        this.segment = Segment;
+        this.records = Records;
+    }
+
+    /**
+     * write the checkpoint to a temp file and rename it into place
+     *
+     * @param dest filename of the checkpoint
+     */
+    public void write(String dest) throws IOException{
+        int size = 8 + 4 + 4;
+        for(LogRecord record:records){
+            size += WriteAheadLog.frameSize(record);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MAGIC);
+        buf.putLong(segment);
+        buf.putInt(records.size());
+        CRC32 crc = new CRC32();
+        for(LogRecord record:records){
+            WriteAheadLog.putFrame(buf, record, record.encodedSize(), crc);
+        }
+        buf.flip();
+
+        File tmp = new File(dest + ".tmp");
+        try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw")){
+            raf.setLength(0);
+            while(buf.hasRemaining()){
+                raf.getChannel().write(buf);
+            }
+        }
+        Files.move(tmp.toPath(), new File(dest).toPath(),
+                   StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * read the checkpoint from disk
+     *
+     * @param dest filename of the checkpoint
+     * @return the checkpoint, or null if there is no valid one
+     */
+    public static Checkpoint read(String dest){
+        File file = new File(dest);
+        if(file.exists() == false){
+            return null;
+        }
+        try{
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if(buf.remaining() < 16 || buf.getInt() != MAGIC){
+                return null;
+            }
+            long seg = buf.getLong();
+            int count = buf.getInt();
+            List<LogRecord> records = new ArrayList<>(count);
+            if(WriteAheadLog.readFrames(buf, records) == false
+               || records.size() != count){
+                // a renamed checkpoint is complete, so this is corruption
+                System.err.println("corrupt checkpoint " + dest);
+                return null;
+            }
+            return new Checkpoint(seg, records);
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
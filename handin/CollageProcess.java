@@ -1,12 +1,11 @@
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /* CollageProcess class for processing photo collages */
 public class CollageProcess{
@@ -24,9 +23,12 @@ public class CollageProcess{
     // vote gathering status
     public boolean decision_made = false;
     // decision making status
-    public boolean final_decision = false;
+    public volatile boolean final_decision = false;
+    // true if no file had the name of the collage when it was admitted,
+    // only then is the file deleted on an abort
+    public boolean owns_file = false;
     // the current status
-    public String status = null;
+    public volatile String status = null;
 
     // all replies are gathered and the decision is made
     private final static  String Decision_step = "Decision";
@@ -35,27 +37,71 @@ public class CollageProcess{
     
     private static String logName = "Server.log";
 
+    // presumed abort, aborts are neither logged nor acked and a user
+    // asking about an unknown collage is told abort
+    public static boolean presumedAbort =
+                                Boolean.getBoolean("twopc.presumedAbort");
+
     // the sources images
     private String[] sources = null;
     // the messages the collage needs to send to users
     private Map<String, NewMessage> message_list = new HashMap<>();
+    // the contents as sent to every user
+    private PayloadTransfer payload = null;
     // the ProjectLib instance
-    private  ProjectLib PL = null;
+    private  NodeLib PL = null;
+    // runs the timer tasks one at a time with the messages of the collage
+    private Executor executor = Runnable::run;
+    // called when a timer finishes the collage
+    private Consumer<CollageProcess> finisher = c -> {};
 
     // timer for vote message timeout
-    private Timer voteTimer = new Timer();
-    // timer for ack message timeout
-    private Timer ackTimer = new Timer();
+    private TimerWheel.Timeout voteTimer = null;
+    // timers for ack message timeout of every user not acked yet
+    private Map<String, TimerWheel.Timeout> ackTimers =
+                                        new ConcurrentHashMap<>();
+
+    // time the collage was posted or recovered in ns
+    private final long createdAt = System.nanoTime();
+    // time the vote requests were sent in ns
+    private long voteSentAt = 0;
+    // time the decision was made in ns
+    private long decidedAt = 0;
+
+    // time from posting to sending the vote requests
+    private static final LatencyHistogram queuedTime =
+                                    Metrics.histogram("collage.queued");
+    // time from the vote requests to the decision
+    private static final LatencyHistogram votesTime =
+                                    Metrics.histogram("collage.votes");
+    // time to log the decision
+    private static final LatencyHistogram decisionLogTime =
+                                    Metrics.histogram("collage.decisionLog");
+    // time from the decision to the last ack
+    private static final LatencyHistogram acksTime =
+                                    Metrics.histogram("collage.acks");
+    // time to log the committed step
+    private static final LatencyHistogram committedLogTime =
+                                Metrics.histogram("collage.committedLog");
+    // time from posting to done, for committed and aborted collages
+    private static final LatencyHistogram commitTotal =
+                                    Metrics.histogram("collage.commitTotal");
+    private static final LatencyHistogram abortTotal =
+                                    Metrics.histogram("collage.abortTotal");
+    // time the decision was first sent to each user in ns
+    private Map<String, Long> decisionSentAt = new ConcurrentHashMap<>();
+    // decision retransmissions made to each user
+    private Map<String, Integer> decisionAttempts = new ConcurrentHashMap<>();
 
     /**
      * CollageProcess constructor
      * 
-     * @param Pl ProjectLib instance
+     * @param Pl NodeLib instance
      * @param Filename filename of the collage
      * @param Contents contents of the collage
      * @param Sources sources of the collage
      */
-    public CollageProcess(ProjectLib Pl, String Filename, 
+    public CollageProcess(NodeLib Pl, String Filename, 
                           byte[] Contents, String[] Sources){
 
         this.PL = Pl;
@@ -71,8 +117,8 @@ public class CollageProcess{
             String image = source.split(":")[1];
             
             if(message_list.containsKey(user)==false){
-                NewMessage msg = new NewMessage(filename, contents, 
-                                                user, image, 1);
+                NewMessage msg = new NewMessage(filename, contents, user,
+                                        image, MessageType.VOTE_REQUEST);
                 message_list.put(user,msg);
             }
             else{
@@ -81,15 +127,49 @@ public class CollageProcess{
         }
     }
 
+    /**
+     * set the executor serializing the work of the collage
+     * 
+     * @param e executor of the collage
+     */
+    public void setExecutor(Executor e){
+        this.executor = e;
+    }
+
+    /**
+     * set the callback forgetting the collage once a timer finished it
+     * 
+     * @param f callback of the server
+     */
+    public void setFinisher(Consumer<CollageProcess> f){
+        this.finisher = f;
+    }
+
+    /**
+     * @return the sources of the collage
+     */
+    public String[] getSources(){
+        return sources;
+    }
+
     /**
      * send message to every usernode to ask for its vote
      */
     public void gatherVote(){
 
+        // compress and split the contents once for all the users
+        payload = new PayloadTransfer(filename, contents);
+
+        voteSentAt = System.nanoTime();
+        queuedTime.record(voteSentAt - createdAt);
         for(String user:user_list){
-            byte[] body = logHandler.serialize(message_list.get(user));
+            NewMessage request = message_list.get(user);
+            payload.prepare(request);
+            byte[] body = MessageCodec.encode(request);
             ProjectLib.Message msg = new ProjectLib.Message(user, body);
             PL.sendMessage(msg);
+            Metrics.sent(MessageType.VOTE_REQUEST);
+            payload.sendChunks(PL, user);
             message_list.remove(user);
         }
         // count the vote time
@@ -107,15 +187,63 @@ public class CollageProcess{
             if(ack_list.contains(user)){// the user already acked
                 continue;
             }
-            NewMessage message = new NewMessage(filename,user,decision,3);
-            byte[] body = logHandler.serialize(message);
-            ProjectLib.Message msg = new ProjectLib.Message(user,body);
-            PL.sendMessage(msg);
+            sendDecision(user, decision);
         }
         decision_made = true;
 
     }
 
+    /**
+     * abort the collage, under presumed abort the decision is sent once
+     * and the collage is done at once
+     * 
+     * @return true if the collage is done, false while acks are awaited
+     */
+    public boolean abort(){
+        final_decision = false;
+        status = Decision_step;
+        cancelTimer(voteTimer);
+        decided();
+        if(presumedAbort){
+            // users missing it ask and the server presumes abort
+            distributeDecision(false);
+            abortTotal.since(createdAt);
+            return true;
+        }
+        long start = System.nanoTime();
+        logHandler.writeLog(PL,logName,
+                            LogRecord.decision(filename, false));
+        decisionLogTime.since(start);
+        distributeDecision(false);
+        countAcktime();
+        return false;
+    }
+
+    /**
+     * record the time the votes took, once the decision is made
+     */
+    private void decided(){
+        decidedAt = System.nanoTime();
+        if(voteSentAt != 0){
+            votesTime.record(decidedAt - voteSentAt);
+        }
+    }
+
+    /**
+     * send the decision of the collage to one usernode
+     * 
+     * @param user id of the usernode
+     * @param decision true if the collage is approved, false otherwise
+     */
+    private void sendDecision(String user, boolean decision){
+        decisionSentAt.putIfAbsent(user, System.nanoTime());
+        NewMessage message = new NewMessage(filename,user,decision,
+                                            MessageType.DECISION);
+        byte[] body = MessageCodec.encode(message);
+        // decisions of collages sharing the user travel together
+        MessageBatcher.of("Server", PL).send(user, body);
+    }
+
     /**
      * count in the ack received from the usernode
      * 
@@ -159,17 +287,48 @@ public class CollageProcess{
     }
 
     /**
-     * commit the approved collage
-     * 
-     * @param filename the filename of the collage
-     * @param img the image contents of the collage
+     * commit the approved collage: write the file, then log the decision
+     * once the file is durable, and tell the users once both are, a user
+     * deletes its images as soon as it hears the decision. A crash in
+     * between leaves a file without a decision, the recovery aborts the
+     * collage and deletes it
+     */
+    private void commitCollage(){
+        long start = System.nanoTime();
+        CommitFileWriter.shared.write(new File(filename), contents)
+            .thenCompose(v -> logHandler.getWriter(PL, logName)
+                            .append(LogRecord.decision(filename, true)))
+            .whenComplete((v, e) ->
+            executor.execute(() -> {
+                decisionLogTime.since(start);
+                if(e != null){
+                    // no user heard of the commit yet, abort instead
+                    e.printStackTrace();
+                    discardFile();
+                    if(abort()){
+                        finisher.accept(this);
+                    }
+                    return;
+                }
+                // distribute the decision
+                distributeDecision(true);
+                // start ack timer
+                countAcktime();
+            }));
+    }
+
+    /**
+     * delete the file of a collage being aborted, written before its
+     * decision could be logged, a file the collage does not own is left
+     * alone
      */
-    private static void commitCollage(String filename, byte[] img) {
-        try {
-            // write the images to the working directory 
-            Files.write(new File(filename).toPath(), img);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public void discardFile(){
+        if(owns_file == false){
+            return;
+        }
+        File file = new File(filename);
+        if(file.exists() && file.delete() == false){
+            System.err.println("cannot delete " + filename);
         }
     }
 
@@ -184,20 +343,51 @@ public class CollageProcess{
         String user = message.addr;
         boolean vote = message.vote;
 
+        // user misses some chunks of the contents
+        if(message.type == MessageType.CHUNK_NACK){
+            if(payload != null && decision_made == false
+               && user_list.contains(user)){
+                payload.resend(PL, user, message.contents);
+            }
+            return false;
+        }
+
+        // user lost the decision, or restarted without it
+        if(message.type == MessageType.DECISION_QUERY){
+            if(decision_made && user_list.contains(user)){
+                sendDecision(user, final_decision);
+            }
+            return false;
+        }
+
         // ack message from user
-        if(message.type == 4){
+        if(message.type == MessageType.ACK){
+            sampleAck(user);
+            cancelTimer(ackTimers.remove(user));
             if(countAck(user)==true){// all ack received and collage committed
-                // stop ack timer
-                ackTimer.cancel();
+                // stop ack timers
+                cancelAckTimers();
+                if(decidedAt != 0){
+                    acksTime.since(decidedAt);
+                }
                 // write log for the committed step
-                logHandler.writeLog(PL,logName,Committed_step+";"+filename);
+                long start = System.nanoTime();
+                logHandler.writeLog(PL,logName,LogRecord.committed(filename));
+                committedLogTime.since(start);
+                (final_decision ? commitTotal : abortTotal).since(createdAt);
                 return true;
             }
             return false;
         }
 
-        // decision distributing
-        if(decision_made){
+        // vote message from user
+        if(voteSentAt != 0 && vote_list.contains(user) == false){
+            RttEstimator.forVote(user)
+                .sample((System.nanoTime() - voteSentAt) / 1e6);
+        }
+
+        // decision made, maybe still being written
+        if(decidedAt != 0){
             return false;
         }
 
@@ -206,76 +396,135 @@ public class CollageProcess{
 
             if(countVote(user) == true){ // all votes received
 
-                // write the files to the working directory
-                commitCollage(filename, contents);
-
                 final_decision = true;
+                status = Decision_step;
                 // stop vote timer
-                voteTimer.cancel();
-                // write log
-                logHandler.writeLog(PL,logName,
-                                    Decision_step+";"+filename+";true");
-                // distribute the decision
-                distributeDecision(final_decision);
-                // start ack timer
-                countAcktime();
+                cancelTimer(voteTimer);
+                decided();
+                // write the file and the log, then distribute
+                commitCollage();
             }
         }
         else{// vote is no
-
-            final_decision = false;
-            voteTimer.cancel();
-            logHandler.writeLog(PL,logName,Decision_step+";"+filename+";false");
-            distributeDecision(final_decision);
-            countAcktime();
+            return abort();
         }
         return false;
     }
     
     /**
-     * count time for lost message asking for vote
+     * sample the decision round trip of a user, unless the decision
+     * was retransmitted and the ack cannot be matched to one send
+     * 
+     * @param user id of the usernode
+     */
+    private void sampleAck(String user){
+        Long sent = decisionSentAt.get(user);
+        if(sent == null || ack_list.contains(user)
+           || decisionAttempts.getOrDefault(user, 0) > 0){
+            return;
+        }
+        RttEstimator.forAck(user).sample((System.nanoTime() - sent) / 1e6);
+    }
+
+    /**
+     * count time for lost message asking for vote, long enough for the
+     * slowest user of the collage
      */
     public void countVotetime(){
-        voteTimer.schedule(new voteTimerTask(),3000,3000);
+        long timeout = 0;
+        for(String user:user_list){
+            timeout = Math.max(timeout, RttEstimator.forVote(user).rto());
+        }
+        cancelTimer(voteTimer);
+        voteTimer = TimerWheel.shared.schedule(
+                        () -> executor.execute(new voteTimerTask()), timeout);
     }
     
     /**
      * count time for lost message asking for ack
      */
     public void countAcktime(){
-        ackTimer.schedule(new ackTimerTask(),3000,3000);
+        for(String user:user_list){
+            if(ack_list.contains(user) == false){
+                scheduleResend(user);
+            }
+        }
+    }
+
+    /**
+     * schedule the next decision retransmission to a user, backing off
+     * with every retransmission already made
+     * 
+     * @param user id of the usernode
+     */
+    private void scheduleResend(String user){
+        if(ack_list.contains(user)){
+            return;
+        }
+        int attempt = decisionAttempts.getOrDefault(user, 0);
+        long delay = RttEstimator.forAck(user).backoff(attempt);
+        cancelTimer(ackTimers.put(user, TimerWheel.shared.schedule(
+                    () -> executor.execute(new ackTimerTask(user)), delay)));
+    }
+
+    /**
+     * stop every decision retransmission
+     */
+    private void cancelAckTimers(){
+        for(TimerWheel.Timeout timer:ackTimers.values()){
+            cancelTimer(timer);
+        }
+        ackTimers.clear();
+    }
+
+    /**
+     * stop a timer if it is running
+     * 
+     * @param timer the timer to stop
+     */
+    private static void cancelTimer(TimerWheel.Timeout timer){
+        if(timer != null){
+            timer.cancel();
+        }
     }
 
     /* voteTimerTask class for counting vote message time */
-    private class voteTimerTask extends TimerTask{
+    private class voteTimerTask implements Runnable{
 
         public voteTimerTask(){
         }
     
         @Override
         public void run(){
-            voteTimer.cancel();
-            if(decision_made==false){
+            if(decidedAt == 0){
                 // if vote timeout, abort the collage
-                logHandler.writeLog(PL,logName,
-                                    Decision_step+";"+filename+";false");
-                final_decision = false;
-                distributeDecision(final_decision);
-                countAcktime();
+                if(abort()){
+                    finisher.accept(CollageProcess.this);
+                }
             }
         }
     } 
 
-    /* ackTimerTask class for counting ack message time */
-    private class ackTimerTask extends TimerTask{
+    /* ackTimerTask class for counting ack message time of one user */
+    private class ackTimerTask implements Runnable{
+
+        // id of the usernode
+        private final String user;
     
-        public  ackTimerTask(){
+        public  ackTimerTask(String u){
+            this.user = u;
         }
     
         @Override
         public void run(){
-            // if ack timeout, redistribute the decision
-            distributeDecision(final_decision);
+            if(ack_list.contains(user)){
+                return;
+            }
+            // if ack timeout, resend the decision and back off
+            decisionAttempts.merge(user, 1, Integer::sum);
+            RttEstimator.forAck(user).retransmitted();
+            sendDecision(user, final_decision);
+            scheduleResend(user);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * CommitFileWriter class for writing committed collages off the message
+ * threads: every file of a batch is staged under a temporary name, then
+ * their data is synced back to back, one sync per file issued together
+ * once all the writes are done, and the files are renamed over their
+ * final names and made durable with one directory sync for the batch
+ */
+public class CommitFileWriter{
+    // files written together, sharing the directory sync
+    public static int maxBatch = Integer.getInteger("commitfile.maxBatch",
+                                                    64);
+    // prefix and suffix of the files being staged, only the files named
+    // with both are the writer's own
+    public static final String STAGING_PREFIX = ".commitfile-";
+    public static final String STAGING_SUFFIX = ".part";
+
+    // the writer of the server
+    public static final CommitFileWriter shared = new CommitFileWriter();
+
+    // time from the request to the durable file
+    private static final LatencyHistogram writeTime =
+                                    Metrics.histogram("commitfile.write");
+    // files made durable
+    private static final LongAdder files =
+                                    Metrics.counter("commitfile.files");
+    // batches written, each with one directory sync
+    private static final LongAdder batches =
+                                    Metrics.counter("commitfile.batches");
+    // data syncs issued, one per staged file
+    private static final LongAdder dataSyncs =
+                                    Metrics.counter("commitfile.dataSyncs");
+    // bytes of the files written
+    private static final LongAdder bytes =
+                                    Metrics.counter("commitfile.bytes");
+
+    // files waiting for the writer thread
+    private final BlockingQueue<pendingFile> queue =
+                                            new LinkedBlockingQueue<>();
+
+    /**
+     * CommitFileWriter constructor, starts the writer thread
+     */
+    public CommitFileWriter(){
+        Thread writer = new Thread(new writeRunnable(), "commit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * write a file in the background
+     *
+     * @param target final name of the file
+     * @param data contents of the file
+     * @return future completed once the file is durable under its name
+     */
+    public CompletableFuture<Void> write(File target, byte[] data){
+        pendingFile f = new pendingFile(target.getAbsoluteFile(), data);
+        queue.add(f);
+        return f.durable;
+    }
+
+    /**
+     * delete the files a crash left half staged in a directory, other
+     * files are left alone whatever their name
+     *
+     * @param dir the directory
+     */
+    public static void cleanup(File dir){
+        File[] staged = dir.listFiles((d, name) -> isStaging(name));
+        if(staged == null){
+            return;
+        }
+        for(File f:staged){
+            f.delete();
+        }
+    }
+
+    /**
+     * @param name name of a file
+     * @return true if the file is one the writer stages
+     */
+    public static boolean isStaging(String name){
+        return name.startsWith(STAGING_PREFIX)
+               && name.endsWith(STAGING_SUFFIX)
+               && name.length() > STAGING_PREFIX.length()
+                                  + STAGING_SUFFIX.length();
+    }
+
+    /**
+     * stage every file of a batch, sync their data back to back, then
+     * rename them and sync their directories once
+     *
+     * @param batch the files
+     */
+    private static void writeBatch(List<pendingFile> batch){
+        List<FileChannel> channels = new ArrayList<>();
+        List<pendingFile> written = new ArrayList<>();
+        for(pendingFile f:batch){
+            try{
+                channels.add(stage(f));
+                written.add(f);
+            }catch(IOException e){
+                f.durable.completeExceptionally(e);
+            }
+        }
+
+        // every write is issued, the syncs follow one another
+        List<pendingFile> staged = new ArrayList<>();
+        for(int i = 0; i < written.size(); i++){
+            pendingFile f = written.get(i);
+            try(FileChannel ch = channels.get(i)){
+                ch.force(false);
+                staged.add(f);
+            }catch(IOException e){
+                f.durable.completeExceptionally(e);
+            }
+        }
+        dataSyncs.add(written.size());
+
+        Set<Path> dirs = new LinkedHashSet<>();
+        List<pendingFile> renamed = new ArrayList<>();
+        for(pendingFile f:staged){
+            try{
+                Files.move(f.staging, f.target.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                dirs.add(f.target.toPath().getParent());
+                renamed.add(f);
+            }catch(IOException e){
+                f.durable.completeExceptionally(e);
+            }
+        }
+
+        // the renames are durable once their directories are
+        IOException failed = null;
+        for(Path dir:dirs){
+            try(FileChannel ch = FileChannel.open(dir,
+                                            StandardOpenOption.READ)){
+                ch.force(true);
+            }catch(IOException e){
+                failed = e;
+            }
+        }
+        batches.increment();
+        for(pendingFile f:renamed){
+            if(failed != null){
+                f.durable.completeExceptionally(failed);
+                continue;
+            }
+            files.increment();
+            bytes.add(f.data.length);
+            writeTime.since(f.enqueuedAt);
+            f.durable.complete(null);
+        }
+    }
+
+    /**
+     * write a file under its staging name without syncing it
+     *
+     * @param f the file
+     * @return the open channel of the staged file, for its sync
+     */
+    private static FileChannel stage(pendingFile f) throws IOException{
+        FileChannel ch = FileChannel.open(f.staging,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING,
+                                StandardOpenOption.WRITE);
+        try{
+            ByteBuffer buf = ByteBuffer.wrap(f.data);
+            while(buf.hasRemaining()){
+                ch.write(buf);
+            }
+        }catch(IOException e){
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    /* pendingFile class for a file waiting to be written */
+    private static class pendingFile{
+        // final name of the file
+        final File target;
+        // name of the file while it is written
+        final Path staging;
+        final byte[] data;
+        // time the file was requested in ns
+        final long enqueuedAt = System.nanoTime();
+        // completed once the file is durable under its final name
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        public pendingFile(File t, byte[] d){
+            this.target = t;
+            this.staging = new File(t.getParentFile(), STAGING_PREFIX
+                                    + t.getName() + STAGING_SUFFIX).toPath();
+            this.data = d;
+        }
+    }
+
+    /* writeRunnable class for the thread writing the batches */
+    private class writeRunnable implements Runnable{
+
+        @Override
+        public void run(){
+            List<pendingFile> batch = new ArrayList<>();
+            while(true){
+                try{
+                    batch.add(queue.take());
+                }catch(InterruptedException e){
+                    return;
+                }
+                queue.drainTo(batch, maxBatch - 1);
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+}
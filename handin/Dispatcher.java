@@ -0,0 +1,145 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/* Dispatcher class for decoding messages and running them per collage */
+public class Dispatcher{
+    // tasks a collage runs before letting other collages have the thread
+    private static final int BATCH = 32;
+
+    // threads decoding and handling the messages
+    private final ExecutorService pool;
+    // queues of the collages that have tasks to run
+    private final Map<String, serialQueue> queues =
+                                        new ConcurrentHashMap<>();
+
+    /**
+     * Dispatcher constructor
+     *
+     * @param workers number of worker threads
+     */
+    public Dispatcher(int workers){
+        this.pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "dispatch-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * decode a message or an envelope on a worker and hand each message
+     * to the handler on the serial queue of its collage
+     *
+     * @param msg message from a usernode
+     * @param handler handles the decoded message
+     */
+    public void dispatch(ProjectLib.Message msg,
+                         Consumer<NewMessage> handler){
+        pool.execute(() -> {
+            try{
+                // an envelope carries several messages, each one goes to
+                // the queue of its own collage
+                for(byte[] body:MessageCodec.unpack(msg.body)){
+                    NewMessage message = MessageCodec.decode(body);
+                    Metrics.received(message.type);
+                    execute(message.filename, () -> handler.accept(message));
+                }
+            }catch(MalformedMessageException e){
+                // drop the message, the timers recover from the loss
+                System.err.println("bad message from " + msg.addr + ": "
+                                   + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * run a task after every task already queued for the same collage,
+     * never at the same time as another task of that collage
+     *
+     * @param key filename of the collage
+     * @param task task to run
+     */
+    public void execute(String key, Runnable task){
+        serialQueue[] start = new serialQueue[1];
+        queues.compute(key, (k, q) -> {
+            if(q == null){
+                q = new serialQueue(k);
+            }
+            q.tasks.add(task);
+            if(q.running == false){
+                q.running = true;
+                start[0] = q;
+            }
+            return q;
+        });
+        if(start[0] != null){
+            pool.execute(start[0]);
+        }
+    }
+
+    /**
+     * @param key filename of the collage
+     * @return executor running tasks on the serial queue of the collage
+     */
+    public Executor executorFor(String key){
+        return task -> execute(key, task);
+    }
+
+    /**
+     * @return number of collages with queued or running tasks
+     */
+    public int activeQueues(){
+        return queues.size();
+    }
+
+    /* serialQueue class for the tasks of one collage */
+    private class serialQueue implements Runnable{
+        final String key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        // true while a worker owns the queue, guarded by the map entry
+        boolean running = false;
+
+        public serialQueue(String k){
+            this.key = k;
+        }
+
+        /**
+         * take the next task, or drop the idle queue from the map
+         *
+         * @return the next task, null if there is none
+         */
+        private Runnable next(){
+            Runnable[] next = new Runnable[1];
+            queues.computeIfPresent(key, (k, q) -> {
+                next[0] = q.tasks.poll();
+                if(next[0] == null){
+                    q.running = false;
+                    return null;
+                }
+                return q;
+            });
+            return next[0];
+        }
+
+        @Override
+        public void run(){
+            for(int i = 0; i < BATCH; i++){
+                Runnable task = next();
+                if(task == null){
+                    return;
+                }
+                try{
+                    task.run();
+                }catch(RuntimeException e){
+                    e.printStackTrace();
+                }
+            }
+            // still busy, give the other collages a turn
+            pool.execute(this);
+        }
+    }
+}
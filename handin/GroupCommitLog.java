@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* GroupCommitLog class for appending log records with a shared fsync */
+public class GroupCommitLog{
+    // max number of records flushed by one fsync
+    public static int maxBatch = Integer.getInteger("log.maxBatch", 128);
+    // max time the flusher waits for more records before the fsync
+    public static long maxWaitMs = Long.getLong("log.maxWaitMs", 0L);
+
+    // the ProjectLib instance
+    private final NodeLib PL;
+    // log name
+    private final String dest;
+    // records waiting for the flusher
+    private final LinkedBlockingQueue<pendingRecord> queue =
+                                        new LinkedBlockingQueue<>();
+    // binary log kept open for the whole life of the node
+    private WriteAheadLog wal = null;
+
+    // records made durable
+    private final AtomicLong records = new AtomicLong();
+    // fsyncs issued
+    private final AtomicLong fsyncs = new AtomicLong();
+    // largest batch flushed by one fsync
+    private final AtomicLong largestBatch = new AtomicLong();
+    // time to write a batch to the log file, and to fsync it
+    private static final LatencyHistogram appendTime =
+                                    Metrics.histogram("log.append");
+    private static final LatencyHistogram fsyncTime =
+                                    Metrics.histogram("log.fsync");
+    // records made durable by every log of the process
+    private static final LongAdder allRecords =
+                                    Metrics.counter("log.records");
+
+    /**
+     * GroupCommitLog constructor, starts the flusher thread
+     *
+     * @param Pl NodeLib instance
+     * @param Dest log name on disk
+     */
+    public GroupCommitLog(NodeLib Pl, String Dest){
+        this.PL = Pl;
+        this.dest = Dest;
+        Thread flusher = new Thread(new flushRunnable(), "log-" + Dest);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * enqueue a record for the next group fsync
+     *
+     * @param content record to write in log
+     * @return future completed once the record is on disk
+     */
+    public CompletableFuture<Void> append(LogRecord content){
+        pendingRecord record = new pendingRecord(content);
+        queue.add(record);
+        return record.durable;
+    }
+
+    /**
+     * write a record and block until it is durable
+     *
+     * @param content record to write in log
+     */
+    public void write(LogRecord content) throws IOException{
+        try{
+            append(content).join();
+        }catch(RuntimeException e){
+            throw new IOException("log write failed: " + dest, e.getCause());
+        }
+    }
+
+    /**
+     * continue the log in a new segment, records enqueued from now on
+     * are never written to the older segments
+     *
+     * @return sequence number of the new segment
+     */
+    public long roll() throws IOException{
+        return wal().roll();
+    }
+
+    /**
+     * @return the binary log, opened on first use
+     */
+    private synchronized WriteAheadLog wal() throws IOException{
+        if(wal == null){
+            wal = new WriteAheadLog(dest);
+        }
+        return wal;
+    }
+
+    /**
+     * @return number of records made durable
+     */
+    public long getRecords(){
+        return records.get();
+    }
+
+    /**
+     * @return number of fsyncs issued
+     */
+    public long getFsyncs(){
+        return fsyncs.get();
+    }
+
+    /**
+     * @return average records covered by one fsync
+     */
+    public double recordsPerFsync(){
+        long f = fsyncs.get();
+        return f == 0 ? 0 : (double)records.get() / f;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%s: records=%d fsyncs=%d perFsync=%.2f max=%d",
+                             dest, records.get(), fsyncs.get(),
+                             recordsPerFsync(), largestBatch.get());
+    }
+
+    /**
+     * collect the next batch, waiting for the first record
+     *
+     * @return records to flush together
+     */
+    private List<pendingRecord> nextBatch() throws InterruptedException{
+        List<pendingRecord> batch = new ArrayList<>();
+        batch.add(queue.take());
+        queue.drainTo(batch, maxBatch - batch.size());
+
+        // wait a little for more records if the policy allows it
+        long deadline = System.nanoTime() +
+                        TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        while(batch.size() < maxBatch){
+            long left = deadline - System.nanoTime();
+            if(left <= 0){
+                break;
+            }
+            pendingRecord record = queue.poll(left, TimeUnit.NANOSECONDS);
+            if(record == null){
+                break;
+            }
+            batch.add(record);
+            queue.drainTo(batch, maxBatch - batch.size());
+        }
+        return batch;
+    }
+
+    /**
+     * append the batch and issue a single fsync for all of it
+     *
+     * @param batch records to flush
+     */
+    private void flush(List<pendingRecord> batch) throws IOException{
+        List<LogRecord> content = new ArrayList<>(batch.size());
+        for(pendingRecord record:batch){
+            content.add(record.content);
+        }
+        long start = System.nanoTime();
+        wal().append(content);
+        long synced = System.nanoTime();
+        PL.fsync();
+        appendTime.record(synced - start);
+        fsyncTime.since(synced);
+        allRecords.add(batch.size());
+
+        records.addAndGet(batch.size());
+        fsyncs.incrementAndGet();
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+    }
+
+    /* pendingRecord class for a record waiting to be flushed */
+    private static class pendingRecord{
+        final LogRecord content;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        public pendingRecord(LogRecord c){
+            this.content = c;
+        }
+    }
+
+    /* flushRunnable class for the single flusher thread */
+    private class flushRunnable implements Runnable{
+
+        @Override
+        public void run(){
+            while(true){
+                List<pendingRecord> batch;
+                try{
+                    batch = nextBatch();
+                }catch(InterruptedException e){
+                    return;
+                }
+                try{
+                    flush(batch);
+                    for(pendingRecord record:batch){
+                        record.durable.complete(null);
+                    }
+                }catch(IOException | RuntimeException e){
+                    for(pendingRecord record:batch){
+                        record.durable.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+ * ImageDeleter class for removing the images of committed collages in
+ * the background: the decision record in the log is the tombstone, so
+ * a usernode acks once it is durable and the files go away later in
+ * batches, or on the next recovery after a crash
+ */
+public class ImageDeleter{
+    // tombstones applied in one batch
+    public static int maxBatch = Integer.getInteger("deleter.maxBatch", 256);
+
+    // the deleter of every usernode of the jvm
+    public static final ImageDeleter shared = new ImageDeleter();
+
+    // time from the tombstone to the deleted files
+    private static final LatencyHistogram lagTime =
+                                    Metrics.histogram("deleter.lag");
+    // images deleted
+    private static final LongAdder deleted =
+                                    Metrics.counter("deleter.images");
+    // batches applied
+    private static final LongAdder batches =
+                                    Metrics.counter("deleter.batches");
+
+    // tombstones waiting for the deleter thread
+    private final BlockingQueue<tombstone> queue =
+                                            new LinkedBlockingQueue<>();
+
+    /**
+     * ImageDeleter constructor, starts the deleter thread
+     */
+    public ImageDeleter(){
+        Thread t = new Thread(new deleteRunnable(), "image-deleter");
+        t.setDaemon(true);
+        t.start();
+        Metrics.gauge("deleter.pending", queue::size);
+    }
+
+    /**
+     * delete the images of a committed collage in the background
+     *
+     * @param dir directory of the images, null for the working directory
+     * @param collage filename of the collage
+     * @param imgs the images
+     * @param done called with the collage once its images are gone
+     */
+    public void delete(File dir, String collage, String[] imgs,
+                       Consumer<String> done){
+        queue.add(new tombstone(dir, collage, imgs, done));
+    }
+
+    /**
+     * @return tombstones not applied yet
+     */
+    public int pending(){
+        return queue.size();
+    }
+
+    /**
+     * delete the images of a batch of tombstones, then report them done
+     *
+     * @param batch the tombstones
+     */
+    private static void apply(List<tombstone> batch){
+        for(tombstone t:batch){
+            for(String img:t.imgs){
+                // already gone if a crash came after the delete
+                if(new File(t.dir, img).delete()){
+                    deleted.increment();
+                }
+            }
+        }
+        batches.increment();
+        for(tombstone t:batch){
+            lagTime.since(t.enqueuedAt);
+            t.done.accept(t.collage);
+        }
+    }
+
+    /* tombstone class for the images of one committed collage */
+    private static class tombstone{
+        final File dir;
+        final String collage;
+        final String[] imgs;
+        final Consumer<String> done;
+        // time the tombstone was queued in ns
+        final long enqueuedAt = System.nanoTime();
+
+        public tombstone(File d, String c, String[] i, Consumer<String> f){
+            this.dir = d;
+            this.collage = c;
+            this.imgs = i;
+            this.done = f;
+        }
+    }
+
+    /* deleteRunnable class for the thread applying the tombstones */
+    private class deleteRunnable implements Runnable{
+
+        @Override
+        public void run(){
+            List<tombstone> batch = new ArrayList<>();
+            while(true){
+                try{
+                    batch.add(queue.take());
+                }catch(InterruptedException e){
+                    return;
+                }
+                queue.drainTo(batch, maxBatch - 1);
+                apply(batch);
+                batch.clear();
+            }
+        }
+    }
+}
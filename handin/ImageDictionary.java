@@ -0,0 +1,193 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * ImageDictionary class for numbering image names: the names are kept
+ * once as UTF-8 in one growing array and looked up through an open
+ * addressing table of ids, so a name costs its bytes and about 12 more
+ * instead of a String and a hash map entry, not thread safe
+ */
+public class ImageDictionary{
+    // UTF-8 bytes of every name, back to back
+    private byte[] arena = new byte[1024];
+    // bytes of the arena in use
+    private int used = 0;
+    // start of each name in the arena, the next start ends it
+    private int[] starts = new int[65];
+    // number of names
+    private int size = 0;
+    // id + 1 of the name in each slot, 0 for an empty slot
+    private int[] table = new int[64];
+
+    /**
+     * @param name image name
+     * @return id of the name, a new one if the name is not known
+     */
+    public int intern(String name){
+        byte[] b = isAscii(name) ? null : utf8(name);
+        int slot = lookup(name, b);
+        if(table[slot] != 0){
+            return table[slot] - 1;
+        }
+        int id = add(name, b);
+        table[slot] = id + 1;
+        if(size * 4 > table.length * 3){
+            grow();
+        }
+        return id;
+    }
+
+    /**
+     * @param name image name
+     * @return id of the name, -1 if the name is not known
+     */
+    public int find(String name){
+        byte[] b = isAscii(name) ? null : utf8(name);
+        return table[lookup(name, b)] - 1;
+    }
+
+    /**
+     * @param id id of a name
+     * @return the name
+     */
+    public String name(int id){
+        if(id < 0 || id >= size){
+            throw new IllegalArgumentException("unknown image id " + id);
+        }
+        return new String(arena, starts[id], starts[id + 1] - starts[id],
+                          StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return number of names
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return bytes of the arrays behind the dictionary
+     */
+    public long sizeInBytes(){
+        return arena.length + 4L * starts.length + 4L * table.length;
+    }
+
+    /**
+     * find the slot of a name, or the empty slot it would go to
+     *
+     * @param name image name
+     * @param b UTF-8 bytes of the name, null if it is all ASCII and
+     *          its chars are its bytes
+     */
+    private int lookup(String name, byte[] b){
+        int h = b == null ? hash(name) : hash(b, 0, b.length);
+        int mask = table.length - 1;
+        int slot = h & mask;
+        while(table[slot] != 0 && equalsAt(table[slot] - 1, name, b) == false){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return true if the name of an id is the given name
+     */
+    private boolean equalsAt(int id, String name, byte[] b){
+        int start = starts[id];
+        int end = starts[id + 1];
+        if(b != null){
+            return Arrays.equals(arena, start, end, b, 0, b.length);
+        }
+        if(end - start != name.length()){
+            return false;
+        }
+        for(int i = 0; i < name.length(); i++){
+            if(arena[start + i] != name.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * append the bytes of a new name to the arena
+     *
+     * @return id of the name
+     */
+    private int add(String name, byte[] b){
+        int len = b == null ? name.length() : b.length;
+        if(used + len > arena.length){
+            arena = Arrays.copyOf(arena,
+                        Math.max(arena.length + arena.length / 2, used + len));
+        }
+        if(b == null){
+            for(int i = 0; i < len; i++){
+                arena[used + i] = (byte)name.charAt(i);
+            }
+        }else{
+            System.arraycopy(b, 0, arena, used, len);
+        }
+        used += len;
+        if(size + 2 > starts.length){
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        size++;
+        starts[size] = used;
+        return size - 1;
+    }
+
+    /**
+     * double the table, placing every id again
+     */
+    private void grow(){
+        int[] old = table;
+        table = new int[old.length * 2];
+        int mask = table.length - 1;
+        for(int v:old){
+            if(v == 0){
+                continue;
+            }
+            int id = v - 1;
+            int slot = hash(arena, starts[id], starts[id + 1]) & mask;
+            while(table[slot] != 0){
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = v;
+        }
+    }
+
+    private static boolean isAscii(String name){
+        for(int i = 0; i < name.length(); i++){
+            if(name.charAt(i) >= 0x80){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] utf8(String name){
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * FNV-1a of an ASCII name, the same as the hash of its bytes
+     */
+    private static int hash(String name){
+        int h = 0x811c9dc5;
+        for(int i = 0; i < name.length(); i++){
+            h = (h ^ name.charAt(i)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * FNV-1a of a byte range, mixed so the low bits spread
+     */
+    private static int hash(byte[] b, int from, int to){
+        int h = 0x811c9dc5;
+        for(int i = from; i < to; i++){
+            h = (h ^ b[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* LatencyHistogram class for recording durations with bounded error */
+public class LatencyHistogram{
+    /*
+     * log-linear buckets like HdrHistogram: values below 64 ns get their
+     * own bucket, larger values keep their top 6 bits, so every bucket
+     * is at most 1/32 of its value wide
+     */
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB;
+
+    // number of values in each bucket
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // number of values recorded
+    private final AtomicLong count = new AtomicLong();
+    // sum of the values recorded in ns
+    private final AtomicLong sum = new AtomicLong();
+    // largest value recorded in ns
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * record one duration
+     *
+     * @param nanos duration in ns, negative values count as 0
+     */
+    public void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * record the time elapsed since a start point
+     *
+     * @param startNanos System.nanoTime() at the start
+     */
+    public void since(long startNanos){
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount(){
+        return count.get();
+    }
+
+    /**
+     * @return mean of the values in ms
+     */
+    public double getMeanMs(){
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / 1e6 / n;
+    }
+
+    /**
+     * @return largest value in ms
+     */
+    public double getMaxMs(){
+        return max.get() / 1e6;
+    }
+
+    /**
+     * @param q quantile between 0 and 1
+     * @return value at the quantile in ms, within the bucket precision
+     */
+    public double percentileMs(double q){
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(q * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += snapshot[i];
+            if(seen >= rank){
+                return Math.min(middle(i), max.get()) / 1e6;
+            }
+        }
+        return max.get() / 1e6;
+    }
+
+    /**
+     * @param v value in ns
+     * @return bucket of the value
+     */
+    private static int index(long v){
+        if(v < LINEAR){
+            return (int)v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (exp - SUB_BITS - 1) * SUB + sub;
+    }
+
+    /**
+     * @param i bucket
+     * @return value in the middle of the bucket in ns
+     */
+    private static long middle(int i){
+        if(i < LINEAR){
+            return i;
+        }
+        int exp = (i - LINEAR) / SUB + SUB_BITS + 1;
+        int sub = (i - LINEAR) % SUB;
+        long width = 1L << (exp - SUB_BITS);
+        return (SUB + sub) * width + width / 2;
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * LockTable class for the images a usernode has promised to collages:
+ * the locked images are a map that shrinks as collages finish, and only
+ * the images removed by committed collages go into an ImageDictionary,
+ * the one state that lives as long as the node
+ */
+public class LockTable{
+    // names of the images removed by committed collages
+    private final ImageDictionary deleted = new ImageDictionary();
+    // image held by a pending collage to that collage
+    private final Map<String, String> locked = new HashMap<>();
+    // collage to the images it holds
+    private final Map<String, String[]> held = new HashMap<>();
+
+    /**
+     * check the images of a collage without taking them, so conflicting
+     * requests are refused before the user is asked
+     *
+     * @param collage filename of the collage
+     * @param imgs images of the collage
+     * @return true if an image is deleted or held by another collage
+     */
+    public synchronized boolean conflicts(String collage,
+                                          Collection<String> imgs){
+        for(String img:imgs){
+            if(deleted.find(img) >= 0){
+                return true;
+            }
+            String owner = locked.get(img);
+            if(owner != null && owner.equals(collage) == false){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * take every image of a collage, or none of them
+     *
+     * @param collage filename of the collage
+     * @param imgs images of the collage
+     * @return true if the collage now holds all its images
+     */
+    public synchronized boolean acquire(String collage,
+                                        Collection<String> imgs){
+        if(held.containsKey(collage)){
+            return false;
+        }
+        String[] names = new LinkedHashSet<>(imgs).toArray(new String[0]);
+        for(String img:names){
+            if(locked.containsKey(img) || deleted.find(img) >= 0){
+                return false;
+            }
+        }
+        for(String img:names){
+            locked.put(img, collage);
+        }
+        held.put(collage, names);
+        return true;
+    }
+
+    /**
+     * give back the images of an aborted collage
+     *
+     * @param collage filename of the collage
+     * @return the images released, null if the collage held none
+     */
+    public synchronized String[] release(String collage){
+        String[] names = held.remove(collage);
+        if(names == null){
+            return null;
+        }
+        for(String img:names){
+            locked.remove(img);
+        }
+        return names;
+    }
+
+    /**
+     * mark the images of a committed collage deleted, no collage can
+     * take them afterwards
+     *
+     * @param collage filename of the collage
+     * @return the images to delete, null if the collage held none
+     */
+    public synchronized String[] commit(String collage){
+        String[] names = held.remove(collage);
+        if(names == null){
+            return null;
+        }
+        for(String img:names){
+            locked.remove(img);
+            deleted.intern(img);
+        }
+        return names;
+    }
+
+    /**
+     * @param collage filename of the collage
+     * @return true if the collage holds its images
+     */
+    public synchronized boolean isHeld(String collage){
+        return held.containsKey(collage);
+    }
+
+    /**
+     * @param collage filename of the collage
+     * @param imgs images of the collage
+     * @return true if the collage holds exactly these images
+     */
+    public synchronized boolean holds(String collage,
+                                      Collection<String> imgs){
+        String[] names = held.get(collage);
+        return names != null && new LinkedHashSet<>(Arrays.asList(names))
+                                .equals(new LinkedHashSet<>(imgs));
+    }
+
+    /**
+     * @return the collages holding images
+     */
+    public synchronized Set<String> heldCollages(){
+        return new LinkedHashSet<>(held.keySet());
+    }
+
+    /**
+     * @param img image name
+     * @return true if the image was removed by a committed collage
+     */
+    public synchronized boolean isDeleted(String img){
+        return deleted.find(img) >= 0;
+    }
+
+    /**
+     * @return number of images held by pending collages
+     */
+    public synchronized int lockedImages(){
+        return locked.size();
+    }
+
+    /**
+     * @return number of images removed by committed collages
+     */
+    public synchronized long deletedImages(){
+        return deleted.size();
+    }
+
+    /**
+     * @return bytes of the dictionary of removed images, without the
+     *         names of the pending collages
+     */
+    public synchronized long sizeInBytes(){
+        return deleted.sizeInBytes();
+    }
+}
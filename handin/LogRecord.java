@@ -0,0 +1,229 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/* LogRecord class for the typed records kept in the write-ahead log */
+public class LogRecord{
+
+    /* kinds of the log records */
+    public enum Kind{
+        // server starts to commit a collage (filename, sources)
+        START_COMMIT,
+        // decision of a collage (filename, decision)
+        DECISION,
+        // all ack received for a collage (filename)
+        COMMITTED,
+        // usernode vote for a collage (filename, vote, images)
+        VOTE,
+        // usernode deleted the images of a committed collage (filename)
+        PURGED,
+        // answer of the user to a collage (key, approved, answered at)
+        APPROVAL;
+
+        private static final Kind[] values = values();
+
+        /**
+         * get the kind from its code on disk
+         *
+         * @param code the ordinal written in the record
+         * @return the kind of the record
+         */
+        public static Kind of(int code){
+            if(code < 0 || code >= values.length){
+                throw new IllegalArgumentException("unknown record kind "
+                                                   + code);
+            }
+            return values[code];
+        }
+    }
+
+    private static final String[] NO_ITEMS = new String[0];
+
+    // kind of the record
+    public final Kind kind;
+    // filename of the collage
+    public final String collage;
+    // the decision or the vote of the record, for a startCommit record
+    // true if the server owns the file of the collage
+    public final boolean flag;
+    // sources of a startCommit record or images of a vote record
+    public final String[] items;
+
+    /**
+     * LogRecord constructor
+     *
+     * @param k kind of the record
+     * @param c filename of the collage
+     * @param f decision or vote
+     * @param i sources or images
+     */
+    public LogRecord(Kind k, String c, boolean f, String[] i){
+        this.kind = k;
+        this.collage = c;
+        this.flag = f;
+        this.items = i == null ? NO_ITEMS : i;
+    }
+
+    /**
+     * @param filename file name of the collage
+     * @param sources the sources of the collage
+     * @return startCommit record of the server, for a collage whose file
+     *         the server does not own
+     */
+    public static LogRecord startCommit(String filename, String[] sources){
+        return startCommit(filename, sources, false);
+    }
+
+    /**
+     * @param filename file name of the collage
+     * @param sources the sources of the collage
+     * @param owned true if no file had the name when the collage was
+     *        admitted, so the server may delete it on an abort
+     * @return startCommit record of the server
+     */
+    public static LogRecord startCommit(String filename, String[] sources,
+                                        boolean owned){
+        return new LogRecord(Kind.START_COMMIT, filename, owned, sources);
+    }
+
+    /**
+     * @param filename file name of the collage
+     * @param decision true if the collage is committed
+     * @return decision record of the server or the usernode
+     */
+    public static LogRecord decision(String filename, boolean decision){
+        return new LogRecord(Kind.DECISION, filename, decision, null);
+    }
+
+    /**
+     * @param filename file name of the collage
+     * @param decision true if the collage is committed
+     * @param imgs images the usernode deletes for a commit
+     * @return decision record of the usernode, the tombstone of the
+     *         images until a purged record follows
+     */
+    public static LogRecord decision(String filename, boolean decision,
+                                     String[] imgs){
+        return new LogRecord(Kind.DECISION, filename, decision, imgs);
+    }
+
+    /**
+     * @param filename file name of the collage
+     * @return purged record of the usernode
+     */
+    public static LogRecord purged(String filename){
+        return new LogRecord(Kind.PURGED, filename, false, null);
+    }
+
+    /**
+     * @param key hash of the collage contents and images
+     * @param approved answer of the user
+     * @param answeredAt wall clock time of the answer in ms
+     * @return approval record of a usernode
+     */
+    public static LogRecord approval(String key, boolean approved,
+                                     long answeredAt){
+        return new LogRecord(Kind.APPROVAL, key, approved,
+                             new String[]{Long.toString(answeredAt)});
+    }
+
+    /**
+     * @param filename file name of the collage
+     * @return committed record of the server
+     */
+    public static LogRecord committed(String filename){
+        return new LogRecord(Kind.COMMITTED, filename, false, null);
+    }
+
+    /**
+     * @param filename file name of the collage
+     * @param vote vote of the usernode
+     * @param imgs images included in the collage
+     * @return vote record of the usernode
+     */
+    public static LogRecord vote(String filename, boolean vote,
+                                 String[] imgs){
+        return new LogRecord(Kind.VOTE, filename, vote, imgs);
+    }
+
+    /**
+     * @return bytes needed by encode
+     */
+    public int encodedSize(){
+        int size = 1 + 1 + sizeOf(collage) + 4;
+        for(String item:items){
+            size += sizeOf(item);
+        }
+        return size;
+    }
+
+    /**
+     * encode the record payload into the buffer
+     *
+     * @param buf destination buffer with at least encodedSize() remaining
+     */
+    public void encode(ByteBuffer buf){
+        buf.put((byte)kind.ordinal());
+        buf.put((byte)(flag ? 1 : 0));
+        putString(buf, collage);
+        buf.putInt(items.length);
+        for(String item:items){
+            putString(buf, item);
+        }
+    }
+
+    /**
+     * decode a record payload
+     *
+     * @param buf buffer positioned at the payload
+     * @return the decoded record
+     */
+    public static LogRecord decode(ByteBuffer buf){
+        try{
+            Kind k = Kind.of(buf.get());
+            boolean f = buf.get() != 0;
+            String c = getString(buf);
+            int n = buf.getInt();
+            if(n < 0 || n > buf.remaining()){
+                throw new IllegalArgumentException("bad item count " + n);
+            }
+            String[] i = new String[n];
+            for(int j = 0; j < n; j++){
+                i[j] = getString(buf);
+            }
+            return new LogRecord(k, c, f, i);
+        }catch(BufferUnderflowException e){
+            throw new IllegalArgumentException("truncated record");
+        }
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder s = new StringBuilder();
+        s.append(kind).append(' ').append(collage).append(' ').append(flag);
+        for(String item:items){
+            s.append(' ').append(item);
+        }
+        return s.toString();
+    }
+
+    private static int sizeOf(String s){
+        return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buf, String s){
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(b.length);
+        buf.put(b);
+    }
+
+    private static String getString(ByteBuffer buf){
+        int len = buf.getInt();
+        if(len < 0 || len > buf.remaining()){
+            throw new IllegalArgumentException("bad string length " + len);
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
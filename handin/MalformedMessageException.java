@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/* MalformedMessageException class for bytes that are not a valid message */
+public class MalformedMessageException extends IOException{
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * MalformedMessageException constructor
+     *
+     * @param msg what is wrong with the message
+     */
+    public MalformedMessageException(String msg){
+        super(msg);
+    }
+}
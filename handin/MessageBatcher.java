@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* MessageBatcher class for coalescing small messages to the same node */
+public class MessageBatcher{
+    // longest time a message waits for others to the same node in ms,
+    // one tick of the timer wheel by default, a shorter window still
+    // lasts up to a tick, 0 sends every message on its own
+    public static long windowMs = Long.getLong("batch.windowMs",
+                                    Long.getLong("timer.tickMs", 10L));
+    // an envelope is sent once its messages reach this many bytes
+    public static int maxBytes = Integer.getInteger("batch.maxBytes",
+                                                    16 * 1024);
+    // an envelope is sent once it holds this many messages
+    public static int maxMessages = Integer.getInteger("batch.maxMessages",
+                                                       64);
+
+    // the batcher of the current incarnation of every node, by node id
+    private static final Map<String, MessageBatcher> batchers =
+                                            new ConcurrentHashMap<>();
+
+    // messages sent on the wire, alone or in an envelope
+    public static final AtomicLong envelopes = new AtomicLong();
+    // messages given to the batchers
+    public static final AtomicLong messages = new AtomicLong();
+    // time each message waited for its envelope
+    private static final LatencyHistogram waitTime =
+                                    Metrics.histogram("batch.wait");
+    static{
+        Metrics.gauge("batch.messages", messages::get);
+        Metrics.gauge("batch.envelopes", envelopes::get);
+    }
+
+    // ProjectLib instance
+    private final NodeLib PL;
+    // messages waiting per destination, guarded by this
+    private final Map<String, pending> queues = new HashMap<>();
+
+    /**
+     * MessageBatcher constructor
+     *
+     * @param PL NodeLib instance
+     */
+    private MessageBatcher(NodeLib PL){
+        this.PL = PL;
+    }
+
+    /**
+     * get the batcher of a node, the batcher of an earlier incarnation
+     * of the node is dropped with the messages it still held
+     *
+     * @param node id of the node
+     * @param PL NodeLib instance of the node
+     * @return the batcher sending through PL
+     */
+    public static MessageBatcher of(String node, NodeLib PL){
+        MessageBatcher b = batchers.get(node);
+        if(b != null && b.PL == PL){
+            return b;
+        }
+        MessageBatcher[] old = new MessageBatcher[1];
+        b = batchers.compute(node, (k, v) -> {
+            if(v != null && v.PL == PL){
+                return v;
+            }
+            old[0] = v;
+            return new MessageBatcher(PL);
+        });
+        if(old[0] != null){
+            old[0].discard();
+        }
+        return b;
+    }
+
+    /**
+     * send a message, possibly together with other messages to the same
+     * node sent within the window
+     *
+     * @param dest address of the node
+     * @param body encoded message
+     */
+    public void send(String dest, byte[] body){
+        messages.incrementAndGet();
+        Metrics.sent(body);
+        if(windowMs <= 0){
+            waitTime.record(0);
+            envelopes.incrementAndGet();
+            PL.sendMessage(new ProjectLib.Message(dest, body));
+            return;
+        }
+        pending full = null;
+        synchronized(this){
+            pending p = queues.get(dest);
+            if(p == null){
+                p = new pending(dest);
+                queues.put(dest, p);
+                pending first = p;
+                // the wheel fires up to a tick after the delay asked for
+                long delay = Math.max(0, windowMs
+                                         - TimerWheel.shared.getTickMs());
+                p.timer = TimerWheel.shared.schedule(() -> flush(first),
+                                                     delay);
+            }
+            p.add(body);
+            if(p.bytes >= maxBytes || p.bodies.size() >= maxMessages){
+                queues.remove(dest);
+                p.timer.cancel();
+                full = p;
+            }
+        }
+        if(full != null){
+            emit(full);
+        }
+    }
+
+    /**
+     * drop the messages waiting and stop their timers, the node they
+     * came from was restarted
+     */
+    private synchronized void discard(){
+        for(pending p:queues.values()){
+            p.timer.cancel();
+        }
+        queues.clear();
+    }
+
+    /**
+     * send the messages of a destination once the window is over
+     *
+     * @param p the messages waiting
+     */
+    private void flush(pending p){
+        synchronized(this){
+            // already sent because it was full
+            if(queues.get(p.dest) != p){
+                return;
+            }
+            queues.remove(p.dest);
+        }
+        emit(p);
+    }
+
+    /**
+     * put the messages in one envelope and send it
+     *
+     * @param p the messages to send
+     */
+    private void emit(pending p){
+        int count = p.bodies.size();
+        long now = System.nanoTime();
+        for(int i = 0; i < count; i++){
+            waitTime.record(now - p.addedAt[i]);
+        }
+        envelopes.incrementAndGet();
+
+        byte[] body = count == 1 ? p.bodies.get(0)
+                                 : MessageCodec.encodeBatch(p.bodies);
+        PL.sendMessage(new ProjectLib.Message(p.dest, body));
+    }
+
+    /**
+     * @return average number of messages in an envelope
+     */
+    public static double messagesPerEnvelope(){
+        long e = envelopes.get();
+        return e == 0 ? 0 : messages.get() / (double)e;
+    }
+
+    /**
+     * @return average time a message waited for its envelope in ms
+     */
+    public static double averageWaitMs(){
+        return waitTime.getMeanMs();
+    }
+
+    /**
+     * @return one line about the batching so far
+     */
+    public static String report(){
+        return String.format("messages=%d envelopes=%d perEnvelope=%.2f " +
+                             "avgWait=%.2fms maxWait=%.2fms",
+                             messages.get(), envelopes.get(),
+                             messagesPerEnvelope(), averageWaitMs(),
+                             waitTime.getMaxMs());
+    }
+
+    /* pending class for the messages waiting for one destination */
+    private static class pending{
+        final String dest;
+        final List<byte[]> bodies = new ArrayList<>();
+        // bytes of the messages
+        int bytes = 0;
+        // time each message was added in ns
+        long[] addedAt = new long[8];
+        TimerWheel.Timeout timer;
+
+        public pending(String d){
+            this.dest = d;
+        }
+
+        void add(byte[] body){
+            if(bodies.size() == addedAt.length){
+                addedAt = Arrays.copyOf(addedAt, 2 * addedAt.length);
+            }
+            addedAt[bodies.size()] = System.nanoTime();
+            bodies.add(body);
+            bytes += body.length;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/* MessageCodec class for the binary wire format of NewMessage */
+public class MessageCodec{
+    /*
+     * version 3 layout, lengths and counts are unsigned varints
+     *   version u8 | type u8 | flags u8 | filename | addr
+     *   | image count | (shared | suffix)... | [chunk | chunks]
+     *   | [contents length | contents]
+     * an image is front coded, shared is the number of chars it has in
+     * common with the image before it and suffix the rest of its name;
+     * chunk and chunks are only present in vote requests and chunks
+     *
+     * an envelope of several messages is
+     *   version u8 | BATCH u8 | flags u8 (0) | count | (length | message)...
+     */
+    public static final int VERSION = 3;
+
+    // flag bit of the vote/decision value
+    private static final int FLAG_VOTE = 1;
+    // flag bit of a message carrying the collage contents
+    private static final int FLAG_CONTENTS = 2;
+    // flag bit of deflated contents
+    private static final int FLAG_COMPRESSED = 4;
+    // every flag bit this version knows
+    private static final int FLAGS = FLAG_VOTE | FLAG_CONTENTS |
+                                     FLAG_COMPRESSED;
+
+    // encoding buffer reused by each thread
+    private static final ThreadLocal<ByteBuffer> buffers =
+                    ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    /**
+     * encode a message into a byte array
+     *
+     * @param message the message to encode
+     * @return encoded message bytes
+     */
+    public static byte[] encode(NewMessage message){
+        ByteBuffer buf = buffers.get();
+        int size = encodedSize(message);
+        if(buf.capacity() < size){
+            buf = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+            buffers.set(buf);
+        }
+        buf.clear();
+        encode(message, buf);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * encode a message into a buffer
+     *
+     * @param message the message to encode
+     * @param buf destination with at least encodedSize() remaining
+     */
+    public static void encode(NewMessage message, ByteBuffer buf){
+        int flags = (message.vote ? FLAG_VOTE : 0) |
+                    (message.contents != null ? FLAG_CONTENTS : 0) |
+                    (message.compressed ? FLAG_COMPRESSED : 0);
+        buf.put((byte)VERSION);
+        buf.put((byte)message.type.code);
+        buf.put((byte)flags);
+        putString(buf, message.filename);
+        putString(buf, message.addr);
+        putVarint(buf, message.imgs.size());
+        String prev = "";
+        for(String img:message.imgs){
+            int shared = sharedPrefix(prev, img);
+            putVarint(buf, shared);
+            putString(buf, img.substring(shared));
+            prev = img;
+        }
+        if(hasChunks(message.type)){
+            putVarint(buf, message.chunk);
+            putVarint(buf, message.chunks);
+        }
+        if(message.contents != null){
+            putVarint(buf, message.contents.length);
+            buf.put(message.contents);
+        }
+    }
+
+    /**
+     * @param message the message to encode
+     * @return exact number of bytes of the encoded message
+     */
+    public static int encodedSize(NewMessage message){
+        int size = 3 + stringSize(message.filename) +
+                   stringSize(message.addr) +
+                   varintSize(message.imgs.size());
+        String prev = "";
+        for(String img:message.imgs){
+            int shared = sharedPrefix(prev, img);
+            size += varintSize(shared) + stringSize(img.substring(shared));
+            prev = img;
+        }
+        if(hasChunks(message.type)){
+            size += varintSize(message.chunk) + varintSize(message.chunks);
+        }
+        if(message.contents != null){
+            size += varintSize(message.contents.length) +
+                    message.contents.length;
+        }
+        return size;
+    }
+
+    /**
+     * decode a message
+     *
+     * @param bytes encoded message bytes
+     * @return the decoded message
+     * @throws MalformedMessageException if the bytes are not a message
+     */
+    public static NewMessage decode(byte[] bytes)
+                                    throws MalformedMessageException{
+        if(bytes == null || bytes.length < 3){
+            throw new MalformedMessageException("message too short");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int version = buf.get() & 0xff;
+        if(version != VERSION){
+            throw new MalformedMessageException("unsupported version "
+                                                + version);
+        }
+        int code = buf.get() & 0xff;
+        MessageType type = MessageType.of(code);
+        if(type == null){
+            throw new MalformedMessageException("unknown type " + code);
+        }
+        if(type == MessageType.BATCH){
+            throw new MalformedMessageException("envelope not unpacked");
+        }
+        int flags = buf.get() & 0xff;
+        if((flags & ~FLAGS) != 0){
+            throw new MalformedMessageException("unknown flags " + flags);
+        }
+
+        String filename = getString(buf);
+        String addr = getString(buf);
+        NewMessage message = new NewMessage(filename, addr,
+                                            (flags & FLAG_VOTE) != 0, type);
+        int count = getLength(buf);
+        String prev = "";
+        for(int i = 0; i < count; i++){
+            int shared = getVarint(buf);
+            if(shared > prev.length()){
+                throw new MalformedMessageException("shared prefix " + shared
+                                        + " of " + prev.length() + " chars");
+            }
+            prev = prev.substring(0, shared) + getString(buf);
+            message.imgs.add(prev);
+        }
+        message.compressed = (flags & FLAG_COMPRESSED) != 0;
+        if(hasChunks(type)){
+            message.chunk = getVarint(buf);
+            message.chunks = getVarint(buf);
+            if((type == MessageType.CHUNK && message.chunks == 0)
+               || (message.chunks > 0 && message.chunk >= message.chunks)){
+                throw new MalformedMessageException("chunk " + message.chunk
+                                        + " of " + message.chunks);
+            }
+        }
+        if((flags & FLAG_CONTENTS) != 0){
+            message.contents = new byte[getLength(buf)];
+            buf.get(message.contents);
+        }
+        if(buf.hasRemaining()){
+            throw new MalformedMessageException(buf.remaining() +
+                                                " trailing bytes");
+        }
+        return message;
+    }
+
+    /**
+     * put encoded messages into one envelope
+     *
+     * @param bodies encoded messages
+     * @return encoded envelope bytes
+     */
+    public static byte[] encodeBatch(List<byte[]> bodies){
+        int size = 3 + varintSize(bodies.size());
+        for(byte[] body:bodies){
+            size += varintSize(body.length) + body.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put((byte)VERSION);
+        buf.put((byte)MessageType.BATCH.code);
+        buf.put((byte)0);
+        putVarint(buf, bodies.size());
+        for(byte[] body:bodies){
+            putVarint(buf, body.length);
+            buf.put(body);
+        }
+        return buf.array();
+    }
+
+    /**
+     * take the messages out of an envelope
+     *
+     * @param bytes encoded envelope or single message
+     * @return the encoded messages, or bytes itself if it is no envelope
+     * @throws MalformedMessageException if the envelope is broken
+     */
+    public static List<byte[]> unpack(byte[] bytes)
+                                    throws MalformedMessageException{
+        if(bytes == null || bytes.length < 3
+           || (bytes[1] & 0xff) != MessageType.BATCH.code){
+            return Collections.singletonList(bytes);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int version = buf.get() & 0xff;
+        if(version != VERSION){
+            throw new MalformedMessageException("unsupported version "
+                                                + version);
+        }
+        buf.get();
+        if(buf.get() != 0){
+            throw new MalformedMessageException("unknown envelope flags");
+        }
+        int count = getLength(buf);
+        List<byte[]> bodies = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            byte[] body = new byte[getLength(buf)];
+            buf.get(body);
+            bodies.add(body);
+        }
+        if(buf.hasRemaining()){
+            throw new MalformedMessageException(buf.remaining() +
+                                                " trailing bytes");
+        }
+        return bodies;
+    }
+
+    /**
+     * @param type type of the message
+     * @return true if the type carries chunk numbers
+     */
+    private static boolean hasChunks(MessageType type){
+        return type == MessageType.VOTE_REQUEST || type == MessageType.CHUNK;
+    }
+
+    /**
+     * @return chars the two names start with, never splitting a
+     *         surrogate pair
+     */
+    private static int sharedPrefix(String prev, String s){
+        int max = Math.min(prev.length(), s.length());
+        int n = 0;
+        while(n < max && prev.charAt(n) == s.charAt(n)){
+            n++;
+        }
+        if(n > 0 && Character.isHighSurrogate(s.charAt(n - 1))){
+            n--;
+        }
+        return n;
+    }
+
+    private static int stringSize(String s){
+        int len = utf8Length(s);
+        return varintSize(len) + len;
+    }
+
+    private static int utf8Length(String s){
+        int len = 0;
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c < 0x80){
+                len += 1;
+            }
+            else if(c < 0x800){
+                len += 2;
+            }
+            else if(Character.isHighSurrogate(c)
+                    && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))){
+                len += 4;
+                i++;
+            }
+            else{
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    private static void putString(ByteBuffer buf, String s){
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        putVarint(buf, b.length);
+        buf.put(b);
+    }
+
+    private static String getString(ByteBuffer buf)
+                                    throws MalformedMessageException{
+        int len = getLength(buf);
+        String s = new String(buf.array(), buf.position(), len,
+                              StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static int varintSize(int v){
+        int size = 1;
+        while((v >>>= 7) != 0){
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buf, int v){
+        while((v & ~0x7f) != 0){
+            buf.put((byte)((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    /**
+     * read a length and check it fits in the rest of the message
+     */
+    private static int getLength(ByteBuffer buf)
+                                    throws MalformedMessageException{
+        int v = getVarint(buf);
+        if(v > buf.remaining()){
+            throw new MalformedMessageException("length " + v +
+                                                " exceeds " + buf.remaining());
+        }
+        return v;
+    }
+
+    private static int getVarint(ByteBuffer buf)
+                                    throws MalformedMessageException{
+        int v = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            if(buf.hasRemaining() == false){
+                throw new MalformedMessageException("truncated message");
+            }
+            int b = buf.get();
+            v |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                if(v < 0){
+                    throw new MalformedMessageException("negative varint");
+                }
+                return v;
+            }
+        }
+        throw new MalformedMessageException("varint too long");
+    }
+}
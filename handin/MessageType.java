@@ -0,0 +1,46 @@
+/* MessageType enum for the messages between server and usernode */
+public enum MessageType{
+    // server asks user for vote
+    VOTE_REQUEST(1),
+    // user vote message
+    VOTE(2),
+    // server distributes the decision
+    DECISION(3),
+    // user ack message
+    ACK(4),
+    // server sends one chunk of the collage contents
+    CHUNK(5),
+    // user asks the server to resend the chunks it is missing
+    CHUNK_NACK(6),
+    // envelope of several messages to the same node
+    BATCH(7),
+    // user asks for the decision of a collage it voted YES on
+    DECISION_QUERY(8);
+
+    private static final MessageType[] byCode = new MessageType[9];
+    static{
+        for(MessageType t:values()){
+            byCode[t.code] = t;
+        }
+    }
+
+    // code of the type on the wire
+    public final int code;
+
+    MessageType(int c){
+        this.code = c;
+    }
+
+    /**
+     * get the type from its code on the wire
+     *
+     * @param code the code of the type
+     * @return the type, or null if the code is unknown
+     */
+    public static MessageType of(int code){
+        if(code < 0 || code >= byCode.length){
+            return null;
+        }
+        return byCode[code];
+    }
+}
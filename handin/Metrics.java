@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/* Metrics class for the counters, gauges and latencies of a process */
+public class Metrics{
+    // time between two dumps of the metrics file in ms
+    public static long dumpMs = Long.getLong("metrics.dumpMs", 10000L);
+    // path of the dump without extension, null for no dump
+    public static String dumpFile = System.getProperty("metrics.file");
+
+    // latency histograms by name
+    private static final Map<String, LatencyHistogram> histograms =
+                                            new ConcurrentHashMap<>();
+    // counters by name
+    private static final Map<String, LongAdder> counters =
+                                            new ConcurrentHashMap<>();
+    // gauges by name
+    private static final Map<String, LongSupplier> gauges =
+                                            new ConcurrentHashMap<>();
+    // messages sent and received by type
+    private static final Map<MessageType, LongAdder> sent =
+                                    new EnumMap<>(MessageType.class);
+    private static final Map<MessageType, LongAdder> received =
+                                    new EnumMap<>(MessageType.class);
+    static{
+        for(MessageType t:MessageType.values()){
+            sent.put(t, counter("msg.sent." + t));
+            received.put(t, counter("msg.received." + t));
+        }
+    }
+
+    // true once the mbean and the dump timer are set up
+    private static boolean started = false;
+
+    /**
+     * get or create a latency histogram
+     *
+     * @param name name of the histogram
+     * @return the histogram
+     */
+    public static LatencyHistogram histogram(String name){
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * get or create a counter
+     *
+     * @param name name of the counter
+     * @return the counter
+     */
+    public static LongAdder counter(String name){
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * register a gauge, replacing the one of the same name
+     *
+     * @param name name of the gauge
+     * @param value reads the current value
+     */
+    public static void gauge(String name, LongSupplier value){
+        gauges.put(name, value);
+    }
+
+    /**
+     * count a message sent
+     *
+     * @param type type of the message
+     */
+    public static void sent(MessageType type){
+        sent.get(type).increment();
+    }
+
+    /**
+     * count an encoded message sent
+     *
+     * @param body encoded message
+     */
+    public static void sent(byte[] body){
+        MessageType type = body.length > 1 ? MessageType.of(body[1] & 0xff)
+                                           : null;
+        if(type != null){
+            sent(type);
+        }
+    }
+
+    /**
+     * count a message received
+     *
+     * @param type type of the message
+     */
+    public static void received(MessageType type){
+        received.get(type).increment();
+    }
+
+    /**
+     * expose the metrics through JMX and start the periodic dump
+     *
+     * @param process name of the process in the object name
+     */
+    public static synchronized void start(String process){
+        if(started){
+            return;
+        }
+        started = true;
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new mbean(),
+                    new ObjectName("collage:type=Metrics,process=" +
+                                   ObjectName.quote(process)));
+        }catch(JMException e){
+            e.printStackTrace();
+        }
+        if(dumpFile != null && dumpMs > 0){
+            TimerWheel.shared.schedule(Metrics::dump, dumpMs, dumpMs);
+        }
+    }
+
+    /**
+     * write the text and JSON dumps next to each other
+     */
+    public static void dump(){
+        try{
+            write(Paths.get(dumpFile + ".txt"), text());
+            write(Paths.get(dumpFile + ".json"), json());
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * replace a file in one step, readers never see half a dump
+     */
+    private static void write(Path path, String contents) throws IOException{
+        Path tmp = Paths.get(path + ".tmp");
+        Files.write(tmp, contents.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return every metric as a flat name to value map, histograms
+     *         give their count, mean, percentiles and max in ms
+     */
+    public static Map<String, Number> snapshot(){
+        Map<String, Number> values = new TreeMap<>();
+        for(Map.Entry<String, LongAdder> e:counters.entrySet()){
+            values.put(e.getKey(), e.getValue().sum());
+        }
+        for(Map.Entry<String, LongSupplier> e:gauges.entrySet()){
+            values.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for(Map.Entry<String, LatencyHistogram> e:histograms.entrySet()){
+            LatencyHistogram h = e.getValue();
+            String n = e.getKey();
+            values.put(n + ".count", h.getCount());
+            values.put(n + ".meanMs", h.getMeanMs());
+            values.put(n + ".p50Ms", h.percentileMs(0.50));
+            values.put(n + ".p90Ms", h.percentileMs(0.90));
+            values.put(n + ".p99Ms", h.percentileMs(0.99));
+            values.put(n + ".maxMs", h.getMaxMs());
+        }
+        return values;
+    }
+
+    /**
+     * @return the metrics as one "name value" line each
+     */
+    public static String text(){
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Number> e:snapshot().entrySet()){
+            sb.append(e.getKey()).append(' ')
+              .append(format(e.getValue())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the metrics as one flat JSON object
+     */
+    public static String json(){
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"timeMs\": ").append(System.currentTimeMillis());
+        for(Map.Entry<String, Number> e:snapshot().entrySet()){
+            sb.append(",\n  \"").append(e.getKey()).append("\": ")
+              .append(format(e.getValue()));
+        }
+        return sb.append("\n}\n").toString();
+    }
+
+    private static String format(Number n){
+        if(n instanceof Double){
+            return String.format("%.3f", n.doubleValue());
+        }
+        return n.toString();
+    }
+
+    /* mbean class exposing every metric as a read-only attribute */
+    private static class mbean implements DynamicMBean{
+
+        @Override
+        public Object getAttribute(String name)
+                                        throws AttributeNotFoundException{
+            Number value = snapshot().get(name);
+            if(value == null){
+                throw new AttributeNotFoundException(name);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names){
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for(String name:names){
+                if(values.containsKey(name)){
+                    list.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute){
+            throw new UnsupportedOperationException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes){
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params,
+                             String[] signature){
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo(){
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for(Map.Entry<String, Number> e:snapshot().entrySet()){
+                attrs.add(new MBeanAttributeInfo(e.getKey(),
+                            e.getValue().getClass().getName(), e.getKey(),
+                            true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(),
+                        "collage commit metrics", attrs.toArray(
+                        new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -1,10 +1,11 @@
-import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /* NewMessage class for constructing the message between server and usernode */
-public class NewMessage implements Serializable{
+public class NewMessage{
 
-    private static final long serialVersionUID = 1L;
     // filename of the collage
     public String filename = null;
     // cotents of the collage
@@ -12,16 +13,21 @@ public class NewMessage implements Serializable{
     // id of the user node
     public String addr = null;
     // filename of the images
-    public LinkedList<String> imgs = new LinkedList<>();
+    public List<String> imgs = new ArrayList<>();
+    // the images again for addImg once the list is long, null before
+    private Set<String> imgSet = null;
     // the return value of the uservote
     public boolean vote = false;
 
-    /* types of the massage */ 
-    // 1 -> server asks user for vote
-    // 2 -> user vote message
-    // 3 -> server distributes the decision
-    // 4 -> user ack message
-    public int type = 1;
+    // type of the massage
+    public MessageType type = MessageType.VOTE_REQUEST;
+
+    // index of the chunk carried by a chunk message
+    public int chunk = 0;
+    // chunks of the contents, 0 if the contents are carried inline
+    public int chunks = 0;
+    // true if the contents were deflated before they were split
+    public boolean compressed = false;
 
 
     /**
@@ -33,7 +39,8 @@ public class NewMessage implements Serializable{
      * @param img filename of the images
      * @param t type of the message
      */
-    public NewMessage(String fn, byte[] c, String a, String img, int t){
+    public NewMessage(String fn, byte[] c, String a, String img,
+                      MessageType t){
         this.filename = fn;
         this.contents = c;
         this.addr = a;
@@ -49,7 +56,7 @@ public class NewMessage implements Serializable{
      * @param v vote of the usernode
      * @param t type of the message
      */
-    public NewMessage(String fn, String a, boolean v, int t){
+    public NewMessage(String fn, String a, boolean v, MessageType t){
         this.filename = fn;
         this.addr = a;
         this.vote = v;
@@ -57,10 +64,35 @@ public class NewMessage implements Serializable{
     }
 
     /**
-     * add required image for the usernode
+     * chunk of the collage contents constructor, the message is the same
+     * for every usernode and carries no address
+     * 
+     * @param fn filename of the collage
+     * @param part bytes of the chunk
+     * @param index index of the chunk
+     * @param count number of chunks of the contents
+     * @param deflated true if the contents were compressed
+     */
+    public NewMessage(String fn, byte[] part, int index, int count,
+                      boolean deflated){
+        this.filename = fn;
+        this.addr = "";
+        this.contents = part;
+        this.chunk = index;
+        this.chunks = count;
+        this.compressed = deflated;
+        this.type = MessageType.CHUNK;
+    }
+
+    /**
+     * add required image for the usernode, once
      */
     public void addImg(String img){
-        if(imgs.contains(img) == false) {
+        // a short list is cheaper to scan than to hash
+        if(imgSet == null && imgs.size() >= 8){
+            imgSet = new HashSet<>(imgs);
+        }
+        if(imgSet == null ? imgs.contains(img) == false : imgSet.add(img)){
             this.imgs.add(img);
         }
     }
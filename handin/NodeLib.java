@@ -0,0 +1,61 @@
+/* NodeLib interface for the messaging, prompt and fsync services a node uses */
+public interface NodeLib{
+
+    /**
+     * send a message to another node
+     *
+     * @param msg message with the address of the destination
+     */
+    void sendMessage(ProjectLib.Message msg);
+
+    /**
+     * wait for the next message to the server
+     *
+     * @return message with the address of the sender
+     */
+    ProjectLib.Message getMessage();
+
+    /**
+     * ask the user whether the collage may use the images
+     *
+     * @param img contents of the collage
+     * @param sources images of the user in the collage
+     * @return true if the user approves
+     */
+    boolean askUser(byte[] img, String[] sources);
+
+    /**
+     * make the files of the node durable
+     */
+    void fsync();
+
+    /**
+     * wrap a ProjectLib connected to the Project4 harness
+     *
+     * @param PL ProjectLib instance
+     * @return the services of PL
+     */
+    static NodeLib of(ProjectLib PL){
+        return new NodeLib(){
+            @Override
+            public void sendMessage(ProjectLib.Message msg){
+                PL.sendMessage(msg);
+            }
+
+            @Override
+            public ProjectLib.Message getMessage(){
+                return PL.getMessage();
+            }
+
+            @Override
+            public boolean askUser(byte[] img, String[] sources){
+                return PL.askUser(img, sources);
+            }
+
+            @Override
+            public void fsync(){
+                PL.fsync();
+            }
+        };
+    }
+}
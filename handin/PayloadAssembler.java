@@ -0,0 +1,159 @@
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/* PayloadAssembler class for rebuilding chunked contents on a usernode */
+public class PayloadAssembler{
+    // time between two requests for the missing chunks in ms
+    public static long nackMs = Long.getLong("payload.nackMs", 500L);
+    // requests for missing chunks before a collage is given up
+    public static int maxNacks = Integer.getInteger("payload.maxNacks", 8);
+
+    // collages waiting for some of their chunks
+    private final Map<String, assembly> pending = new HashMap<>();
+    // sends the bitmap of the missing chunks of a collage to the server
+    private final BiConsumer<String, byte[]> nackSender;
+
+    /**
+     * PayloadAssembler constructor
+     *
+     * @param sender sends a chunk request for a collage to the server
+     */
+    public PayloadAssembler(BiConsumer<String, byte[]> sender){
+        this.nackSender = sender;
+    }
+
+    /**
+     * take a vote request or a chunk
+     *
+     * @param message vote request or chunk from the server
+     * @return the vote request with its full contents once every part
+     *         arrived, null while parts are missing
+     */
+    public NewMessage offer(NewMessage message)
+                                        throws MalformedMessageException{
+        if(message.type == MessageType.VOTE_REQUEST && message.chunks == 0){
+            // contents carried inline
+            return unpack(message, message.contents);
+        }
+
+        byte[] data;
+        NewMessage request;
+        synchronized(this){
+            assembly a = pending.get(message.filename);
+            if(a == null){
+                a = new assembly(message.filename, message.chunks);
+                pending.put(message.filename, a);
+            }
+            else if(a.parts.length != message.chunks){
+                throw new MalformedMessageException(message.filename +
+                            " has " + a.parts.length + " chunks, not " +
+                            message.chunks);
+            }
+            if(message.type == MessageType.VOTE_REQUEST){
+                a.request = message;
+            }
+            else if(a.parts[message.chunk] == null){
+                a.parts[message.chunk] = message.contents;
+                a.received++;
+            }
+            if(a.request == null || a.received < a.parts.length){
+                return null;
+            }
+            pending.remove(message.filename);
+            a.timer.cancel();
+            data = a.join();
+            request = a.request;
+        }
+        return unpack(request, data);
+    }
+
+    /**
+     * @return number of collages waiting for chunks
+     */
+    public synchronized int pending(){
+        return pending.size();
+    }
+
+    /**
+     * put the contents back into the vote request
+     */
+    private static NewMessage unpack(NewMessage request, byte[] data)
+                                        throws MalformedMessageException{
+        if(request.compressed && data != null){
+            data = PayloadTransfer.inflate(data);
+        }
+        request.contents = data;
+        request.compressed = false;
+        request.chunks = 0;
+        return request;
+    }
+
+    /**
+     * ask for the missing chunks of a collage or give it up
+     *
+     * @param a the collage waiting for chunks
+     */
+    private void check(assembly a){
+        byte[] missing;
+        synchronized(this){
+            if(pending.get(a.filename) != a){
+                return;
+            }
+            a.nacks++;
+            if(a.nacks > maxNacks){
+                // the server has aborted the collage by now
+                pending.remove(a.filename);
+                a.timer.cancel();
+                return;
+            }
+            if(a.request == null){
+                // wait for the vote request, it names the usernode
+                return;
+            }
+            BitSet bits = new BitSet(a.parts.length);
+            for(int i = 0; i < a.parts.length; i++){
+                if(a.parts[i] == null){
+                    bits.set(i);
+                }
+            }
+            missing = bits.toByteArray();
+        }
+        nackSender.accept(a.filename, missing);
+    }
+
+    /* assembly class for the parts received for one collage */
+    private class assembly{
+        final String filename;
+        final byte[][] parts;
+        NewMessage request = null;
+        int received = 0;
+        int nacks = 0;
+        final TimerWheel.Timeout timer;
+
+        public assembly(String fn, int count){
+            this.filename = fn;
+            this.parts = new byte[count][];
+            this.timer = TimerWheel.shared.schedule(() -> check(this),
+                                                    nackMs, nackMs);
+        }
+
+        /**
+         * @return the chunks joined in order
+         */
+        byte[] join(){
+            int size = 0;
+            for(byte[] part:parts){
+                size += part.length;
+            }
+            byte[] data = new byte[size];
+            int pos = 0;
+            for(byte[] part:parts){
+                System.arraycopy(part, 0, data, pos, part.length);
+                pos += part.length;
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* PayloadTransfer class for sending the collage contents to usernodes */
+public class PayloadTransfer{
+    // bytes of contents carried by one chunk message
+    public static int chunkSize = Integer.getInteger("payload.chunkSize",
+                                                     64 * 1024);
+    // contents up to this size are carried inside the vote request
+    public static int inlineMax = Integer.getInteger("payload.inlineMax",
+                                                     4096);
+    // deflate the contents when it makes them smaller
+    public static boolean compress = Boolean.parseBoolean(
+                            System.getProperty("payload.compress", "true"));
+
+    // chunks sent again after a usernode asked for them
+    public static final AtomicLong resentChunks = new AtomicLong();
+    // contents bytes saved by compression
+    public static final AtomicLong savedBytes = new AtomicLong();
+
+    // contents as sent, possibly deflated
+    private final byte[] data;
+    // true if data is deflated
+    private final boolean compressed;
+    // encoded chunk messages, shared by every usernode
+    private final byte[][] bodies;
+
+    /**
+     * PayloadTransfer constructor, compresses and encodes the contents
+     * once for every usernode of the collage
+     *
+     * @param filename filename of the collage
+     * @param contents contents of the collage
+     */
+    public PayloadTransfer(String filename, byte[] contents){
+        byte[] packed = compress ? deflate(contents) : null;
+        // incompressible images, like jpeg, are sent as they are
+        if(packed != null && packed.length < contents.length * 0.95){
+            savedBytes.addAndGet(contents.length - packed.length);
+            this.data = packed;
+            this.compressed = true;
+        }
+        else{
+            this.data = contents;
+            this.compressed = false;
+        }
+
+        if(data.length <= inlineMax){
+            this.bodies = new byte[0][];
+            return;
+        }
+        int count = (data.length + chunkSize - 1) / chunkSize;
+        this.bodies = new byte[count][];
+        for(int i = 0; i < count; i++){
+            byte[] part = Arrays.copyOfRange(data, i * chunkSize,
+                                Math.min(data.length, (i + 1) * chunkSize));
+            bodies[i] = MessageCodec.encode(
+                        new NewMessage(filename, part, i, count, compressed));
+        }
+    }
+
+    /**
+     * fill in the contents fields of a vote request
+     *
+     * @param request vote request of a usernode
+     */
+    public void prepare(NewMessage request){
+        request.compressed = compressed;
+        request.chunks = bodies.length;
+        request.contents = bodies.length == 0 ? data : null;
+    }
+
+    /**
+     * send every chunk to a usernode
+     *
+     * @param PL NodeLib instance
+     * @param user id of the usernode
+     */
+    public void sendChunks(NodeLib PL, String user){
+        for(byte[] body:bodies){
+            PL.sendMessage(new ProjectLib.Message(user, body));
+            Metrics.sent(MessageType.CHUNK);
+        }
+    }
+
+    /**
+     * send again the chunks a usernode is missing
+     *
+     * @param PL NodeLib instance
+     * @param user id of the usernode
+     * @param missing bitmap of the missing chunks
+     */
+    public void resend(NodeLib PL, String user, byte[] missing){
+        if(missing == null){
+            return;
+        }
+        BitSet bits = BitSet.valueOf(missing);
+        for(int i = bits.nextSetBit(0); i >= 0 && i < bodies.length;
+            i = bits.nextSetBit(i + 1)){
+            PL.sendMessage(new ProjectLib.Message(user, bodies[i]));
+            Metrics.sent(MessageType.CHUNK);
+            resentChunks.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param contents bytes to compress
+     * @return deflated bytes
+     */
+    public static byte[] deflate(byte[] contents){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(contents);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                                        contents.length / 2 + 64);
+        byte[] buf = new byte[16 * 1024];
+        while(deflater.finished() == false){
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * @param packed deflated bytes
+     * @return the original bytes
+     * @throws MalformedMessageException if the bytes are not deflated
+     */
+    public static byte[] inflate(byte[] packed)
+                                        throws MalformedMessageException{
+        Inflater inflater = new Inflater();
+        inflater.setInput(packed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                                        packed.length * 2 + 64);
+        byte[] buf = new byte[16 * 1024];
+        try{
+            while(inflater.finished() == false){
+                int n = inflater.inflate(buf);
+                if(n == 0 && (inflater.needsInput()
+                              || inflater.needsDictionary())){
+                    throw new MalformedMessageException("truncated contents");
+                }
+                out.write(buf, 0, n);
+            }
+        }catch(DataFormatException e){
+            throw new MalformedMessageException("bad contents: "
+                                                + e.getMessage());
+        }finally{
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+ * RecoveryQueue class for resolving the collages a crash left in
+ * flight at a bounded rate: the ones with a logged decision go first
+ * since their users hold images waiting for it, the undecided ones
+ * are aborted after them, and new collages run in the meantime
+ */
+public class RecoveryQueue{
+    // collages resolved per second, 0 for all at once
+    public static int ratePerSec = Integer.getInteger("recovery.ratePerSec",
+                                                      500);
+    // time between two releases in ms
+    private static final long PERIOD_MS = 10;
+
+    // priorities, lower goes first
+    public static final int COMMIT = 0;
+    public static final int ABORT = 1;
+    public static final int UNDECIDED = 2;
+
+    // time from the end of the replay to the resolution of a collage
+    private static final LatencyHistogram delayTime =
+                                    Metrics.histogram("recovery.delay");
+    // collages handed to the resolver
+    private static final LongAdder resolved =
+                                    Metrics.counter("recovery.resolved");
+
+    // collages waiting, by priority then log order, guarded by this
+    private final PriorityQueue<entry> waiting = new PriorityQueue<>();
+    // resolves one collage
+    private final Consumer<CollageProcess> resolver;
+    // order the collages were added in
+    private long sequence = 0;
+    // collages owed to the resolver, the fraction carried to the next
+    // release, guarded by this
+    private double credit = 0;
+    // time the queue started releasing in ns
+    private long startedAt = 0;
+    // release timer, null while stopped
+    private TimerWheel.Timeout timer = null;
+
+    /**
+     * RecoveryQueue constructor
+     *
+     * @param r resolves one collage, called on the timer thread
+     */
+    public RecoveryQueue(Consumer<CollageProcess> r){
+        this.resolver = r;
+    }
+
+    /**
+     * queue a recovered collage
+     *
+     * @param collage the collage
+     * @param priority COMMIT, ABORT or UNDECIDED
+     */
+    public synchronized void add(CollageProcess collage, int priority){
+        waiting.add(new entry(collage, priority, sequence++));
+    }
+
+    /**
+     * start resolving the queued collages
+     */
+    public synchronized void start(){
+        startedAt = System.nanoTime();
+        if(ratePerSec <= 0){
+            release(waiting.size());
+            return;
+        }
+        if(waiting.isEmpty() == false && timer == null){
+            timer = TimerWheel.shared.schedule(this::tick, 0, PERIOD_MS);
+        }
+    }
+
+    /**
+     * stop releasing, the collages still waiting belong to a crashed
+     * incarnation
+     */
+    public synchronized void stop(){
+        if(timer != null){
+            timer.cancel();
+            timer = null;
+        }
+        waiting.clear();
+    }
+
+    /**
+     * @return collages not resolved yet
+     */
+    public synchronized int pending(){
+        return waiting.size();
+    }
+
+    /**
+     * release the collages the rate allows for one period
+     */
+    private synchronized void tick(){
+        credit += ratePerSec * PERIOD_MS / 1000.0;
+        int n = (int)credit;
+        credit -= n;
+        release(n);
+        if(waiting.isEmpty() && timer != null){
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * hand collages to the resolver in priority order
+     *
+     * @param n most collages to hand over
+     */
+    private void release(int n){
+        for(int i = 0; i < n && waiting.isEmpty() == false; i++){
+            CollageProcess collage = waiting.poll().collage;
+            delayTime.since(startedAt);
+            resolved.increment();
+            resolver.accept(collage);
+        }
+    }
+
+    /* entry class for a collage waiting in the queue */
+    private static class entry implements Comparable<entry>{
+        final CollageProcess collage;
+        final int priority;
+        final long seq;
+
+        public entry(CollageProcess c, int p, long s){
+            this.collage = c;
+            this.priority = p;
+            this.seq = s;
+        }
+
+        @Override
+        public int compareTo(entry o){
+            if(priority != o.priority){
+                return Integer.compare(priority, o.priority);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/* RttEstimator class for the smoothed round trip time of a usernode */
+public class RttEstimator{
+    // timeout used before the first sample
+    public static long initialRtoMs = Long.getLong("rtt.initialMs", 3000L);
+    // lower bound of the timeout
+    public static long minRtoMs = Long.getLong("rtt.minMs", 200L);
+    // upper bound of the timeout, also caps the backoff
+    public static long maxRtoMs = Long.getLong("rtt.maxMs", 30000L);
+    // extra random fraction added to a backed off timeout
+    public static double jitter = 0.25;
+
+    // vote round trips of every usernode, including the user think time
+    private static final Map<String,RttEstimator> votes =
+                                        new ConcurrentHashMap<>();
+    // decision/ack round trips of every usernode
+    private static final Map<String,RttEstimator> acks =
+                                        new ConcurrentHashMap<>();
+
+    // smoothed round trip time in ms
+    private double srtt = 0;
+    // round trip time variance in ms
+    private double rttvar = 0;
+    // number of samples taken
+    private long samples = 0;
+    // number of retransmissions
+    private final AtomicLong retransmits = new AtomicLong();
+    // retransmissions to every usernode
+    private static final LongAdder allRetransmits =
+                                Metrics.counter("decision.retransmits");
+
+    /**
+     * @param user id of the usernode
+     * @return the vote round trip estimator of the usernode
+     */
+    public static RttEstimator forVote(String user){
+        return votes.computeIfAbsent(user,
+                                     u -> register("rtt.vote." + u));
+    }
+
+    /**
+     * @param user id of the usernode
+     * @return the decision/ack round trip estimator of the usernode
+     */
+    public static RttEstimator forAck(String user){
+        return acks.computeIfAbsent(user, u -> register("rtt.ack." + u));
+    }
+
+    /**
+     * make an estimator and publish its srtt, timeout and
+     * retransmissions as gauges
+     *
+     * @param prefix name of the gauges without the last part
+     * @return the estimator
+     */
+    private static RttEstimator register(String prefix){
+        RttEstimator rtt = new RttEstimator();
+        Metrics.gauge(prefix + ".srttMs", rtt::srttMs);
+        Metrics.gauge(prefix + ".rtoMs", rtt::rto);
+        Metrics.gauge(prefix + ".retransmits", rtt::getRetransmits);
+        return rtt;
+    }
+
+    /**
+     * add a round trip sample, never taken from a retransmitted message
+     *
+     * @param rttMs measured round trip in ms
+     */
+    public synchronized void sample(double rttMs){
+        if(samples == 0){
+            srtt = rttMs;
+            rttvar = rttMs / 2;
+        }
+        else{
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+        samples++;
+    }
+
+    /**
+     * @return retransmission timeout in ms
+     */
+    public synchronized long rto(){
+        if(samples == 0){
+            return initialRtoMs;
+        }
+        long rto = (long)Math.ceil(srtt + 4 * rttvar);
+        return Math.min(maxRtoMs, Math.max(minRtoMs, rto));
+    }
+
+    /**
+     * @return smoothed round trip time in ms, 0 before the first sample
+     */
+    public synchronized long srttMs(){
+        return Math.round(srtt);
+    }
+
+    /**
+     * timeout of the next retransmission, doubled for every attempt
+     * already made and spread by a random jitter
+     *
+     * @param attempt retransmissions already made
+     * @return delay before the next retransmission in ms
+     */
+    public long backoff(int attempt){
+        long delay = rto() << Math.min(attempt, 16);
+        delay = Math.min(maxRtoMs, delay);
+        long spread = (long)(delay * jitter);
+        if(spread > 0){
+            delay += ThreadLocalRandom.current().nextLong(spread + 1);
+        }
+        return delay;
+    }
+
+    /**
+     * count a retransmission to the usernode
+     */
+    public void retransmitted(){
+        retransmits.incrementAndGet();
+        allRetransmits.increment();
+    }
+
+    /**
+     * @return number of retransmissions to the usernode
+     */
+    public long getRetransmits(){
+        return retransmits.get();
+    }
+
+    @Override
+    public synchronized String toString(){
+        return String.format("srtt=%.1fms rttvar=%.1fms rto=%dms " +
+                             "samples=%d retransmits=%d",
+                             srtt, rttvar, rto(), samples, retransmits.get());
+    }
+}
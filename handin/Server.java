@@ -1,4 +1,9 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* Server class */
 public class Server implements ProjectLib.CommitServing {
@@ -11,53 +16,159 @@ public class Server implements ProjectLib.CommitServing {
     private final static  String Committed_step = "Committed";
 
     // ProjectLib instance
-    private static ProjectLib PL;
+    private static NodeLib PL;
     // records of all the collages posted to the server that need to committ
     private static Map<String,CollageProcess> collageCommit =
-                                        new HashMap<String,CollageProcess>();
+                            new ConcurrentHashMap<String,CollageProcess>();
+    // decodes the messages and runs the work of each collage in order
+    private static Dispatcher dispatcher = new Dispatcher(Integer.getInteger(
+            "dispatch.workers", 4 * Runtime.getRuntime().availableProcessors()));
+    // bounds the collages in flight, the others wait their turn
+    private static final AdmissionQueue admission = new AdmissionQueue();
+    // resolves the collages a crash left in flight
+    private static volatile RecoveryQueue recovery = new RecoveryQueue(c -> {});
+    // time to make the first log record of a collage durable
+    private static final LatencyHistogram startLogTime =
+                                    Metrics.histogram("log.startCommit");
     // log file name
     private static String log_name = "Server.log";
+    // checkpoint file name
+    private static String checkpoint_name = "Server.ckpt";
+
+    // finished collages between two checkpoints, committed or aborted,
+    // both leave records in the log
+    public static int checkpointInterval =
+                                Integer.getInteger("ckpt.interval", 1000);
+    // finished collages since the last checkpoint
+    private static final AtomicInteger finishedSinceCheckpoint =
+                                                    new AtomicInteger();
+    // wakes the checkpoint thread, the permits released while it works
+    // are covered by its next checkpoint
+    private static final Semaphore checkpointDue = new Semaphore(0);
+    // takes the checkpoints off the workers finishing the collages
+    private static final Thread checkpointer = startCheckpointer();
+    // number of checkpoints taken
+    public static volatile long checkpoints = 0;
+    // time taken by a checkpoint
+    private static final LatencyHistogram checkpointTime =
+                                    Metrics.histogram("server.checkpoint");
+    // records replayed by the last recovery
+    private static volatile long recordsReplayed = 0;
 
 
     
     /**
-     * post the new collage to the server and start commit
+     * post the new collage to the server, it starts once the admission
+     * queue has room for it
      * 
      * @param filename  file name of the collage
      * @param img  image contents of the collage
      * @param sources the sources of the collage
      */
     public void startCommit(String filename, byte[] img, String[] sources){
-        // write log for the first step
-        String log_content = parseCollage(filename, sources);
-        logHandler.writeLog(PL, log_name, log_content);
-
-        // initiailize the new collage and put it to the commit records
-        CollageProcess newCollage = new CollageProcess(PL,filename,img,sources);
-        collageCommit.put(filename, newCollage);
+        launch(admission.offer(
+                    new AdmissionQueue.candidate(filename, img, sources)));
+    }
 
-        // start a new thread for the collage
-        collageRunnable newrun = new collageRunnable(newCollage);
-        newrun.run();
+    /**
+     * start the commit of the admitted collages on their serial queues
+     * 
+     * @param ready the collages admitted
+     */
+    private static void launch(List<AdmissionQueue.candidate> ready){
+        for(AdmissionQueue.candidate c:ready){
+            dispatcher.execute(c.filename, () -> begin(c));
+        }
     }
 
     /**
-     * parse the collage command parameters
+     * start the commit of an admitted collage: log it, then gather the
+     * votes once the record is durable
      * 
-     * @param filename file name of the collage
-     * @param sources the sources of the collage
-     * @return the parsed collage parameters
+     * @param c the collage
      */
-    public String parseCollage(String filename, String[] sources){
+    private static void begin(AdmissionQueue.candidate c){
+        // initiailize the new collage and put it to the commit records,
+        // before its log record so that a checkpoint never misses it
+        CollageProcess newCollage = new CollageProcess(PL, c.filename,
+                                                       c.img, c.sources);
+        // the admission made sure no file had the name
+        newCollage.owns_file = true;
+        track(newCollage);
+
+        // write log for the first step without holding the worker
+        long start = System.nanoTime();
+        logHandler.getWriter(PL, log_name)
+            .append(LogRecord.startCommit(c.filename, c.sources, true))
+            .whenComplete((v, e) -> {
+                startLogTime.since(start);
+                if(e != null){
+                    // nothing was sent yet, drop the collage
+                    e.printStackTrace();
+                    finish(newCollage);
+                    return;
+                }
+                // gather the votes on the serial queue of the collage
+                dispatcher.execute(c.filename, newCollage::gatherVote);
+            });
+    }
 
-        StringBuffer content = new StringBuffer();
-        content.append(Initial_step + ";");
-        content.append(filename);
+    /**
+     * put a collage into the commit records, its timers run on the
+     * serial queue of the collage
+     * 
+     * @param collage the collage instance
+     */
+    private static void track(CollageProcess collage){
+        collage.setExecutor(dispatcher.executorFor(collage.filename));
+        collage.setFinisher(Server::finish);
+        collageCommit.put(collage.filename, collage);
+    }
 
-        for(String source:sources) {
-            content.append(";" + source);
+    /**
+     * forget a collage that is done, and wake the checkpoint thread once
+     * enough collages are done
+     * 
+     * @param collage the collage instance
+     */
+    private static void finish(CollageProcess collage){
+        if(collage.final_decision){
+            // later collages using its images are refused at once
+            admission.committed(collage.getSources());
+        }
+        // a timer of a crashed incarnation must not drop the new one
+        if(collageCommit.remove(collage.filename, collage)){
+            launch(admission.release(collage.filename));
+        }
+        if(finishedSinceCheckpoint.incrementAndGet() >= checkpointInterval){
+            checkpointDue.release();
         }
-        return content.toString();
+    }
+
+    /**
+     * start the thread taking the checkpoints the finished collages ask
+     * for
+     * 
+     * @return the thread
+     */
+    private static Thread startCheckpointer(){
+        Thread t = new Thread(() -> {
+            while(true){
+                try{
+                    checkpointDue.acquire();
+                }catch(InterruptedException e){
+                    return;
+                }
+                checkpointDue.drainPermits();
+                // a checkpoint taken since the request covers it
+                if(finishedSinceCheckpoint.get() >= checkpointInterval){
+                    checkpoint();
+                }
+            }
+        }, "checkpointer");
+        t.setDaemon(true);
+        t.start();
+        return t;
     }
 
     /**
@@ -65,118 +176,291 @@ public class Server implements ProjectLib.CommitServing {
      * 
      * @param logs the records in the log file
      */
-    public static void recoverFailure(List<String> logs){
+    public static void recoverFailure(List<LogRecord> logs){
         
         if(logs == null){// no log and no collage commit yet
             return;
         }
 
-        for(String line:logs){
-            String[] content = line.split(";");
-            // the current step to recover
-            String step = content[0];
-            // the filename of the collage
-            String collage = content[1];
-            // the collage instance
-            CollageProcess currCollage = null;
-
-            
-            if(step.equals(Initial_step)){// recover from start commit 
-                String[] sources = Arrays.copyOfRange(content,2,content.length);
-                // reinitialize the collage
-                currCollage = new CollageProcess(PL, collage, null, sources);
-                currCollage.status = Initial_step;
-                // put the collage into commit records
-                collageCommit.put(collage, currCollage);
-            }
-            else if(step.equals(Decision_step)){// recover from decision made
-                if(collageCommit.containsKey(collage)){
-                    String status = content[2];
-                    currCollage = collageCommit.get(collage);
-                    // record the decision
-                    currCollage.status = Decision_step;
-                    currCollage.decision_made = true;
-                    currCollage.final_decision = Boolean.parseBoolean(status);
-                }
-            }
-            else if(step.equals(Committed_step)){// committed and no recovery
-                if(collageCommit.containsKey(collage)){
-                    // remove the collage from commit records
-                    collageCommit.remove(collage);
-                }
-            }
+        for(LogRecord record:logs){
+            replay(record);
         }
-        // recommit all the collages
+        // resolve the collages left in flight
         recommitCollage();
     }
 
     /**
-     * recommit all the collages in the commit records
+     * apply one record of the checkpoint or the log to the commit
+     * records
+     * 
+     * @param record the record
      */
-    public static void recommitCollage(){
-
+    private static void replay(LogRecord record){
+        // the filename of the collage
+        String collage = record.collage;
+        // the collage instance
         CollageProcess currCollage = null;
-        for(String filename:collageCommit.keySet()){
-            currCollage = collageCommit.get(filename);
-            // failure before a decision is made
-            if(currCollage.status.equals(Initial_step)){
-                // abort the collage and distribute NO decision 
-                currCollage.final_decision = false;
-                currCollage.distributeDecision(false);
-                currCollage.countAcktime();
+
+        switch(record.kind){
+        case START_COMMIT:// recover from start commit 
+            // reinitialize the collage
+            currCollage = new CollageProcess(PL, collage, null,
+                                             record.items);
+            currCollage.status = Initial_step;
+            currCollage.owns_file = record.flag;
+            // put the collage into commit records
+            track(currCollage);
+            break;
+        case DECISION:// recover from decision made
+            if(collageCommit.containsKey(collage)){
+                currCollage = collageCommit.get(collage);
+                // record the decision
+                currCollage.status = Decision_step;
+                currCollage.decision_made = true;
+                // the commit is only logged once the file is durable
+                currCollage.final_decision = record.flag;
             }
-            // failure after the decision is made
-            else if(currCollage.status.equals(Decision_step)){
-                // redistribute the decision
-                currCollage.distributeDecision(currCollage.final_decision);
-                currCollage.countAcktime();
+            break;
+        case COMMITTED:// committed and no recovery
+            // remove the collage from commit records
+            currCollage = collageCommit.remove(collage);
+            if(currCollage != null && currCollage.final_decision){
+                admission.committed(currCollage.getSources());
             }
+            break;
+        default:
+            break;
         }
     }
 
+    /**
+     * snapshot the in-flight collages and delete the log segments
+     * the snapshot makes useless, runs on the checkpoint thread and
+     * once at the end of a recovery
+     */
+    public static synchronized void checkpoint(){
+        long start = System.nanoTime();
+        try{
+            // records enqueued from now on go to the new segment, and
+            // every earlier record is already applied to collageCommit
+            long segment = logHandler.getWriter(PL, log_name).roll();
+            // the collages finished from now on are replayed from the
+            // new segment
+            finishedSinceCheckpoint.set(0);
 
-    public static void main ( String args[] ) throws Exception {
-        if (args.length != 1) throw new Exception("Need 1 arg: <port>");
-        Server srv = new Server();
-        PL = new ProjectLib( Integer.parseInt(args[0]), srv );
+            List<LogRecord> records = new ArrayList<>();
+            for(CollageProcess collage:collageCommit.values()){
+                records.add(LogRecord.startCommit(collage.filename,
+                                                  collage.getSources(),
+                                                  collage.owns_file));
+                if(Decision_step.equals(collage.status)){
+                    records.add(LogRecord.decision(collage.filename,
+                                                   collage.final_decision));
+                }
+            }
+            new Checkpoint(segment, records).write(checkpoint_name);
+            PL.fsync();
 
-        // read the log and recover from failure
-        List<String> logs = logHandler.readLog(log_name);
-        recoverFailure(logs);
+            // the checkpoint is durable, drop the older history
+            WriteAheadLog.deleteBefore(log_name, segment);
+        }catch(IOException e){
+            e.printStackTrace();
+            return;
+        }
+        checkpoints++;
+        checkpointTime.since(start);
+    }
 
-        // main loop
-        while (true) {
-            // receive message from usernodes
-            ProjectLib.Message msg = PL.getMessage();
-            NewMessage message = logHandler.deserialize(msg.body);
-            String collage = message.filename;
+    /**
+     * replay the checkpoint and the log written after it, streaming
+     * the log one segment at a time, refusing to start when the history
+     * before the log on disk is lost: the collages it started would be
+     * forgotten and their users would keep the images locked
+     *
+     * @return number of records replayed
+     */
+    public static long replayRecovery(){
+        long count = 0;
+        long from = 1;
+        Checkpoint ckpt = Checkpoint.read(checkpoint_name);
+        if(ckpt == null && new File(checkpoint_name).exists()){
+            throw new IllegalStateException("invalid checkpoint "
+                        + checkpoint_name + ", the log before it is gone");
+        }
+        if(ckpt != null){
+            from = ckpt.segment;
+        }
+        long[] segments = WriteAheadLog.segments(log_name);
+        if(segments.length > 0 && segments[0] > from){
+            throw new IllegalStateException("log segments " + from
+                        + " to " + (segments[0] - 1) + " of " + log_name
+                        + " are missing");
+        }
+        // finish a deletion the crash cut short, the log opens at the
+        // checkpoint and a torn segment before it must not truncate it
+        WriteAheadLog.deleteBefore(log_name, from);
+        if(ckpt != null){
+            for(LogRecord record:ckpt.records){
+                replay(record);
+            }
+            count = ckpt.records.size();
+        }
+        count += logHandler.scanLog(log_name, from, Server::replay);
+        recordsReplayed = count;
+        return count;
+    }
 
-            // ignore the collage not need to commit
-            if(collageCommit.containsKey(collage) == false){
-                continue;
+    /**
+     * resolve the collages in the commit records through the recovery
+     * queue, the decided ones first and at a bounded rate
+     */
+    public static void recommitCollage(){
+        recovery.stop();
+        recovery = new RecoveryQueue(c -> dispatcher.execute(c.filename,
+                                                      () -> recommit(c)));
+        for(CollageProcess currCollage:collageCommit.values()){
+            int priority = RecoveryQueue.UNDECIDED;
+            if(Decision_step.equals(currCollage.status)){
+                priority = currCollage.final_decision ? RecoveryQueue.COMMIT
+                                                      : RecoveryQueue.ABORT;
             }
-            
+            recovery.add(currCollage, priority);
+            // new collages sharing a source wait for it
+            admission.recovered(currCollage.filename,
+                                currCollage.getSources());
+        }
+        recovery.start();
+    }
 
-            CollageProcess currCollage = collageCommit.get(collage);
+    /**
+     * recommit a collage of the commit records
+     * 
+     * @param currCollage the collage instance
+     */
+    private static void recommit(CollageProcess currCollage){
+        // failure before a decision is made, the file may be written
+        // already and is dropped with the collage
+        if(currCollage.status.equals(Initial_step)){
+            currCollage.discardFile();
+        }
+        if(currCollage.status.equals(Initial_step)
+           && CollageProcess.presumedAbort){
+            // tell the users once, the ones missing it will ask
+            currCollage.final_decision = false;
+            currCollage.distributeDecision(false);
+            finish(currCollage);
+        }
+        else if(currCollage.status.equals(Initial_step)){
+            // abort the collage and distribute NO decision 
+            currCollage.final_decision = false;
+            currCollage.distributeDecision(false);
+            currCollage.countAcktime();
+        }
+        // failure after the decision is made
+        else if(currCollage.status.equals(Decision_step)){
+            // redistribute the decision
+            currCollage.distributeDecision(currCollage.final_decision);
+            currCollage.countAcktime();
+        }
+    }
+
+    /**
+     * handle a message from a usernode on the serial queue of its collage
+     * 
+     * @param message the decoded message
+     */
+    public static void handleMessage(NewMessage message){
+        String collage = message.filename;
+        CollageProcess currCollage = collageCommit.get(collage);
 
-            if (currCollage.getMessage(message) == true){// collage committed
-                collageCommit.remove(collage);
+        // ignore the collage not need to commit
+        if(currCollage == null){
+            // no record of the collage, so it was never committed
+            if(CollageProcess.presumedAbort
+               && message.type == MessageType.DECISION_QUERY){
+                NewMessage abort = new NewMessage(collage, message.addr,
+                                            false, MessageType.DECISION);
+                MessageBatcher.of("Server", PL)
+                    .send(message.addr, MessageCodec.encode(abort));
             }
+            return;
+        }
+
+        if (currCollage.getMessage(message) == true){// collage done
+            finish(currCollage);
         }
     }
-    /* collageRunnable class for concurrent collage commit */
-    class collageRunnable implements Runnable {
 
-        CollageProcess newCollage;
 
-        public collageRunnable(CollageProcess collage) {
-            this.newCollage = collage;
+    /**
+     * publish the gauges of the server and start the metrics dump
+     */
+    private static void registerMetrics(){
+        Metrics.gauge("server.inflight", collageCommit::size);
+        Metrics.gauge("admission.queued", admission::queued);
+        Metrics.gauge("admission.inflight", admission::inFlight);
+        Metrics.gauge("admission.admitted", admission::getAdmissions);
+        Metrics.gauge("recovery.pending", () -> recovery.pending());
+        Metrics.gauge("admission.committedSources",
+                      admission::committedCount);
+        Metrics.gauge("server.checkpoints", () -> checkpoints);
+        Metrics.gauge("recovery.recordsReplayed", () -> recordsReplayed);
+        Metrics.gauge("dispatch.queues", dispatcher::activeQueues);
+        Metrics.gauge("timer.pending", TimerWheel.shared::pending);
+        Metrics.gauge("payload.resentChunks", PayloadTransfer.resentChunks::get);
+        Metrics.gauge("payload.savedBytes", PayloadTransfer.savedBytes::get);
+        Metrics.start("Server");
+    }
+
+    /**
+     * recover from the checkpoint and the log, forgetting whatever a
+     * previous incarnation in this jvm kept in memory
+     * 
+     * @param lib services of the node
+     */
+    public static void start(NodeLib lib){
+        PL = lib;
+        // new collages wait until the replay is over
+        admission.hold();
+        admission.clear();
+        collageCommit.clear();
+
+        // a crash may have left collages half written
+        CommitFileWriter.cleanup(new File("."));
+
+        // replay the checkpoint and the log and resolve what is left
+        replayRecovery();
+        recommitCollage();
+        if(recordsReplayed > 0){
+            // restart from a compact log next time
+            checkpoint();
         }
+        // the recovered collages are resolved in the background
+        launch(admission.open());
+    }
 
-        @Override
-        public void run() {
-            newCollage.gatherVote();
+    /**
+     * decode and handle a message from a usernode on the workers
+     * 
+     * @param msg message with the address of the usernode
+     */
+    public static void deliver(ProjectLib.Message msg){
+        dispatcher.dispatch(msg, Server::handleMessage);
+    }
+
+    public static void main ( String args[] ) throws Exception {
+        if (args.length != 1) throw new Exception("Need 1 arg: <port>");
+        Server srv = new Server();
+        NodeLib lib = NodeLib.of(new ProjectLib( Integer.parseInt(args[0]),
+                                                 srv ));
+        registerMetrics();
+        start(lib);
+
+        // main loop
+        while (true) {
+            // receive message from usernodes
+            deliver(PL.getMessage());
         }
     }
 
-}
\ No newline at end of file
+}
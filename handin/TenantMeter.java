@@ -0,0 +1,92 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* TenantMeter class for the cpu and memory a usernode uses in a shared jvm */
+public class TenantMeter{
+    // per thread cpu time and allocation counters of the jvm
+    private static final ThreadMXBean threads =
+                                    ManagementFactory.getThreadMXBean();
+    // allocation counters, null when the jvm has none
+    private static final com.sun.management.ThreadMXBean allocations =
+            threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean)threads : null;
+
+    static{
+        if(threads.isCurrentThreadCpuTimeSupported()){
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        if(allocations != null
+           && allocations.isThreadAllocatedMemorySupported()){
+            allocations.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    // cpu time used by the tasks of the usernode in ns
+    private final AtomicLong cpuNanos = new AtomicLong();
+    // bytes allocated by the tasks of the usernode
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    // tasks run for the usernode
+    private final AtomicLong tasks = new AtomicLong();
+
+    /**
+     * @return cpu time of the current thread in ns, 0 if unsupported
+     */
+    public static long cpuTime(){
+        if(threads.isCurrentThreadCpuTimeSupported() == false){
+            return 0;
+        }
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * @return bytes allocated by the current thread, 0 if unsupported
+     */
+    public static long allocated(){
+        if(allocations == null){
+            return 0;
+        }
+        return allocations.getThreadAllocatedBytes(
+                                        Thread.currentThread().getId());
+    }
+
+    /**
+     * charge the work done by the current thread since a start point
+     *
+     * @param cpuStart cpuTime() when the task started
+     * @param allocStart allocated() when the task started
+     */
+    public void charge(long cpuStart, long allocStart){
+        cpuNanos.addAndGet(cpuTime() - cpuStart);
+        allocatedBytes.addAndGet(allocated() - allocStart);
+        tasks.incrementAndGet();
+    }
+
+    /**
+     * @return cpu time charged in ns
+     */
+    public long getCpuNanos(){
+        return cpuNanos.get();
+    }
+
+    /**
+     * @return bytes allocated by the charged tasks
+     */
+    public long getAllocatedBytes(){
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return number of charged tasks
+     */
+    public long getTasks(){
+        return tasks.get();
+    }
+
+    @Override
+    public String toString(){
+        return String.format("tasks=%d cpu=%.1fms alloc=%.1fKB",
+                             getTasks(), getCpuNanos() / 1e6,
+                             getAllocatedBytes() / 1024.0);
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/* TimerWheel class for the process-wide hashed timing wheel */
+public class TimerWheel{
+    // the wheel shared by every collage of the process
+    public static final TimerWheel shared = new TimerWheel(
+                        Long.getLong("timer.tickMs", 10L),
+                        Integer.getInteger("timer.wheelSize", 512),
+                        Integer.getInteger("timer.workers", 4));
+
+    // duration of one tick in ms
+    private final long tickMs;
+    // bucket index mask, the wheel size is a power of two
+    private final int mask;
+    // pending timeouts of each bucket
+    private final Timeout[] buckets;
+    // threads running the expired tasks
+    private final ExecutorService workers;
+    // start time of the wheel in ns
+    private final long startNanos;
+    // ticks processed so far
+    private long tick = 0;
+    // number of pending timeouts
+    private int pending = 0;
+
+    /**
+     * TimerWheel constructor, starts the ticking thread
+     *
+     * @param TickMs duration of one tick in ms
+     * @param WheelSize number of buckets, rounded up to a power of two
+     * @param Workers threads running the expired tasks
+     */
+    public TimerWheel(long TickMs, int WheelSize, int Workers){
+        this.tickMs = Math.max(1, TickMs);
+        int size = Integer.highestOneBit(Math.max(2, WheelSize) - 1) << 1;
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.workers = Executors.newFixedThreadPool(Workers, r -> {
+            Thread t = new Thread(r, "timer-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.startNanos = System.nanoTime();
+        Thread ticker = new Thread(new tickRunnable(), "timer-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * run a task once after a delay
+     *
+     * @param task task to run
+     * @param delayMs delay in ms
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMs){
+        return schedule(task, delayMs, 0);
+    }
+
+    /**
+     * run a task after a delay and then again every period
+     *
+     * @param task task to run
+     * @param delayMs delay before the first run in ms
+     * @param periodMs delay between two runs in ms, 0 to run once
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMs, long periodMs){
+        Timeout timeout = new Timeout(task, periodMs);
+        synchronized(this){
+            insert(timeout, delayMs);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return duration of one tick in ms
+     */
+    public long getTickMs(){
+        return tickMs;
+    }
+
+    /**
+     * @return number of timeouts waiting to expire
+     */
+    public synchronized int pending(){
+        return pending;
+    }
+
+    /**
+     * put a timeout in the bucket of its deadline, caller holds the lock
+     *
+     * @param timeout the timeout to insert
+     * @param delayMs delay from now in ms
+     */
+    private void insert(Timeout timeout, long delayMs){
+        long elapsed = (System.nanoTime() - startNanos) / 1000000L;
+        // never expire before the delay, whatever tick we are on
+        long deadline = (elapsed + delayMs + tickMs - 1) / tickMs;
+        long ticks = Math.max(1, deadline - tick);
+        // bucket n is processed at the end of tick n, so the deadline
+        // falls in the bucket before it and the delay is overrun by less
+        // than a tick
+        timeout.rounds = (ticks - 1) / buckets.length;
+        int index = (int)((tick + ticks - 1) & mask);
+
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = buckets[index];
+        if(buckets[index] != null){
+            buckets[index].prev = timeout;
+        }
+        buckets[index] = timeout;
+        pending++;
+    }
+
+    /**
+     * take a timeout out of its bucket, caller holds the lock
+     *
+     * @param timeout the timeout to remove
+     */
+    private void unlink(Timeout timeout){
+        if(timeout.prev != null){
+            timeout.prev.next = timeout.next;
+        }
+        else{
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if(timeout.next != null){
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        pending--;
+    }
+
+    /**
+     * expire the timeouts of the current bucket and advance the wheel
+     *
+     * @return tasks to run
+     */
+    private synchronized List<Timeout> advance(){
+        List<Timeout> expired = new ArrayList<>();
+        Timeout timeout = buckets[(int)(tick & mask)];
+        while(timeout != null){
+            Timeout next = timeout.next;
+            if(timeout.rounds <= 0){
+                unlink(timeout);
+                expired.add(timeout);
+            }
+            else{
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+        tick++;
+        for(Timeout t:expired){
+            if(t.periodMs > 0){
+                insert(t, t.periodMs);
+            }
+        }
+        return expired;
+    }
+
+    /* Timeout class for a task scheduled on the wheel */
+    public class Timeout{
+        // task to run on expiry
+        private final Runnable task;
+        // period of a repeating task, 0 if it runs once
+        private final long periodMs;
+        // full turns of the wheel left before expiry
+        private long rounds;
+        // bucket holding the timeout, -1 if not scheduled
+        private int bucket = -1;
+        // neighbours in the bucket
+        private Timeout prev;
+        private Timeout next;
+        // set once the timeout is cancelled
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable t, long p){
+            this.task = t;
+            this.periodMs = p;
+        }
+
+        /**
+         * stop the task from running again
+         */
+        public void cancel(){
+            cancelled = true;
+            synchronized(TimerWheel.this){
+                if(bucket >= 0){
+                    unlink(this);
+                }
+            }
+        }
+
+        /**
+         * @return true if the timeout was cancelled
+         */
+        public boolean isCancelled(){
+            return cancelled;
+        }
+
+        private void expire(){
+            if(cancelled == false){
+                task.run();
+            }
+        }
+    }
+
+    /* tickRunnable class for the single thread advancing the wheel */
+    private class tickRunnable implements Runnable{
+
+        @Override
+        public void run(){
+            while(true){
+                long next = startNanos + TimeUnit.MILLISECONDS
+                                            .toNanos((tick + 1) * tickMs);
+                long sleep = next - System.nanoTime();
+                if(sleep > 0){
+                    try{
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    }catch(InterruptedException e){
+                        return;
+                    }
+                }
+                for(Timeout timeout:advance()){
+                    workers.execute(timeout::expire);
+                }
+            }
+        }
+    }
+}
@@ -1,19 +1,80 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /* UserNode class */
 public class UserNode implements ProjectLib.MessageHandling{
+    // max users prompts running at the same time on a usernode
+    public static int maxPrompts = Integer.getInteger("vote.maxPrompts", 8);
+    // max vote requests waiting for a prompt, more are voted NO
+    public static int maxQueued = Integer.getInteger("vote.maxQueued", 256);
+    // presumed abort, aborts and NO votes are neither logged nor acked,
+    // and the usernode asks about the collages it voted YES on
+    public static boolean presumedAbort =
+                                Boolean.getBoolean("twopc.presumedAbort");
+    // time between two questions about an undecided collage in ms
+    public static long queryMs = Long.getLong("twopc.queryMs", 5000L);
+
     // the id of the usernode
-    public static String myId;
+    public final String myId;
+    // directory of the images and the log, null for the working directory
+    private final File dir;
     // the ProjectLib instance
-    private static ProjectLib PL;
+    private NodeLib PL;
     // the name of the log file
-    private static String log_name = null;
-
-    // images to lock before the decision is known
-    private static Map<String,Set<String>> lock_list = new HashMap<>();
-    // images to remove after the collage is committed
-    private static Set<String> remove_list = new HashSet<>();
+    private final String log_name;
+
+    // images locked before the decision is known, and images removed
+    private final LockTable lock_table = new LockTable();
+    // collages whose user is being asked
+    private final Set<String> voting_list = new HashSet<>();
+    // collages decided by the server while their user was being asked
+    private final Set<String> decided_list = new HashSet<>();
+    // collages locked for a YES vote whose record is not durable yet
+    private final Set<String> logging_list = new HashSet<>();
+    // decisions that arrived while the YES vote of their collage was
+    // being logged, applied once it is
+    private final Map<String, Boolean> deferred_decisions = new HashMap<>();
+    // guards the lists above, and the lock_table changes that depend on
+    // them
+    private final Object voteState = new Object();
+    // collages the recovery found decided before their YES vote
+    private final Set<String> decided_early = new HashSet<>();
+
+    // runs the user prompts off the delivery thread, its threads exit
+    // while the usernode is idle
+    private final ThreadPoolExecutor votePool;
+    // vote requests waiting for chunks of their contents
+    private final PayloadAssembler assembler =
+                                new PayloadAssembler(this::sendNack);
+    // cpu and memory used by the usernode
+    private final TenantMeter meter = new TenantMeter();
+    // time the user takes to answer a prompt
+    private static final LatencyHistogram promptTime =
+                                    Metrics.histogram("vote.prompt");
+    // time from a complete vote request to the vote sent
+    private static final LatencyHistogram voteTime =
+                                    Metrics.histogram("vote.total");
+    // time to apply a decision
+    private static final LatencyHistogram decisionTime =
+                                    Metrics.histogram("decision.apply");
+    // timers asking the server about the collages voted YES on
+    private final Map<String, TimerWheel.Timeout> queryTimers =
+                                            new ConcurrentHashMap<>();
+    // tombstones the recovery found without a purged record
+    private final Map<String, String[]> tombstones = new LinkedHashMap<>();
+    // votes and decisions answered lately, for the retransmissions
+    private final AnswerCache answers = new AnswerCache();
+    // collages whose vote request is being answered
+    private final Set<String> answering = ConcurrentHashMap.newKeySet();
+    // answers of the user by collage contents, for the collages posted
+    // again
+    private final ApprovalCache approvals = new ApprovalCache();
 
     /**
      * UserNode constructor
@@ -21,7 +82,90 @@ public class UserNode implements ProjectLib.MessageHandling{
      * @param id id of the usernode
      */
     public UserNode( String id ) {
-        myId = id;
+        this(id, null);
+    }
+
+    /**
+     * UserNode constructor for a usernode sharing the jvm with others
+     * 
+     * @param id id of the usernode
+     * @param dir directory of its images and log, null for the working
+     *            directory
+     */
+    public UserNode( String id, File dir ) {
+        this.myId = id;
+        this.dir = dir;
+        this.log_name = new File(dir, id + ".log").getPath();
+        this.votePool = new ThreadPoolExecutor(
+                maxPrompts, maxPrompts, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueued), r -> {
+                    Thread t = new Thread(r, "vote-" + id);
+                    t.setDaemon(true);
+                    return t;
+                });
+        votePool.allowCoreThreadTimeOut(true);
+
+        String prefix = "usernode." + id + ".";
+        Metrics.gauge(prefix + "lockedImages", lock_table::lockedImages);
+        Metrics.gauge(prefix + "prompts",
+                () -> votePool.getActiveCount() + votePool.getQueue().size());
+        Metrics.gauge(prefix + "assembling", assembler::pending);
+        Metrics.gauge(prefix + "cpuNanos", meter::getCpuNanos);
+        Metrics.gauge(prefix + "allocatedBytes", meter::getAllocatedBytes);
+        Metrics.gauge(prefix + "answerHits", answers::getHits);
+        Metrics.gauge(prefix + "answerMisses", answers::getMisses);
+        Metrics.gauge(prefix + "answerCached", answers::size);
+        Metrics.gauge(prefix + "approvalHits", approvals::getHits);
+        Metrics.gauge(prefix + "approvalMisses", approvals::getMisses);
+    }
+
+    /**
+     * recover from the log and connect to the server
+     * 
+     * @param port port of the server
+     */
+    public void start(int port){
+        // stream the log and recover from failure
+        logHandler.scanLog(log_name, 0, this::recover);
+
+        PL = NodeLib.of(new ProjectLib(port, myId, this));
+        resume();
+    }
+
+    /**
+     * recover from the log and use the given services, messages are
+     * passed to deliverMessage by whoever provides them
+     * 
+     * @param lib services of the node
+     */
+    public void start(NodeLib lib){
+        // stream the log and recover from failure
+        logHandler.scanLog(log_name, 0, this::recover);
+
+        PL = lib;
+        resume();
+    }
+
+    /**
+     * pick up the deletions and the collages left undecided by the
+     * recovery
+     */
+    private void resume(){
+        // finish the deletions a crash interrupted
+        for(Map.Entry<String, String[]> e:tombstones.entrySet()){
+            ImageDeleter.shared.delete(dir, e.getKey(), e.getValue(),
+                                       this::purged);
+        }
+        tombstones.clear();
+        decided_early.clear();
+
+        // the server does not resend aborts, ask about the collages
+        // still undecided
+        if(presumedAbort){
+            for(String collage:lock_table.heldCollages()){
+                awaitDecision(collage);
+            }
+        }
     }
 
     /**
@@ -31,25 +175,126 @@ public class UserNode implements ProjectLib.MessageHandling{
      * @return true if the message is delivered and processed
      */
     public boolean deliverMessage( ProjectLib.Message msg ) {
+        long cpu = TenantMeter.cpuTime();
+        long alloc = TenantMeter.allocated();
+        try{
+            return handleMessage(msg);
+        }finally{
+            meter.charge(cpu, alloc);
+        }
+    }
 
-        NewMessage message = logHandler.deserialize(msg.body);
+    /**
+     * decode and handle the message from server
+     * 
+     * @param msg message from server
+     * @return true if the message is delivered and processed
+     */
+    private boolean handleMessage( ProjectLib.Message msg ) {
+
+        NewMessage message;
+        try{
+            // an envelope carries several messages from the server
+            List<byte[]> bodies = MessageCodec.unpack(msg.body);
+            if(bodies.size() > 1){
+                for(byte[] body:bodies){
+                    handleMessage(new ProjectLib.Message(msg.addr, body));
+                }
+                return true;
+            }
+            message = MessageCodec.decode(msg.body);
+            Metrics.received(message.type);
+        }catch(MalformedMessageException e){
+            // drop the message, the server will time out or resend
+            System.err.println(myId + ": bad message from " + msg.addr
+                               + ": " + e.getMessage());
+            return true;
+        }
 
         // the server asks for vote        
-        if(message.type == 1) {
-            askVote(message);
+        if(message.type == MessageType.VOTE_REQUEST
+           || message.type == MessageType.CHUNK) {
+            if(message.type == MessageType.VOTE_REQUEST){
+                Boolean vote = answers.vote(message.filename, message.imgs);
+                // a YES vote stands only while its images are locked
+                if(vote != null
+                   && lock_table.holds(message.filename, message.imgs)){
+                    // answered before and the vote was lost, send it again
+                    sendMessage(MessageType.VOTE, message.filename, vote);
+                    return true;
+                }
+                // a new collage, maybe under the name of an old one
+                answers.requested(message.filename, message.imgs);
+            }
+            else if(answers.hasVote(message.filename)){
+                // a chunk resent for a request already answered
+                return true;
+            }
+            NewMessage request;
+            try{
+                request = assembler.offer(message);
+            }catch(MalformedMessageException e){
+                System.err.println(myId + ": bad contents of "
+                                   + message.filename + ": " + e.getMessage());
+                return true;
+            }
+            // ask the user once all the contents arrived
+            if(request != null){
+                submitVote(request);
+            }
         }
 
         // the server distributes the dicision
-        else if(message.type == 3){
+        else if(message.type == MessageType.DECISION){
+            long start = System.nanoTime();
             acceptDecision(message);
+            decisionTime.since(start);
         }
         return true;
     }
 
-    // 
+    /**
+     * examine the candidate collage on the vote workers, so decisions
+     * keep flowing while the user thinks
+     * 
+     * @param message the message from server
+     */
+    public void submitVote(NewMessage message){
+        if(answering.add(message.filename) == false){
+            // a copy of the request is still being answered, its vote
+            // answers this one too
+            answers.hit();
+            return;
+        }
+        long submitted = System.nanoTime();
+        try{
+            votePool.execute(() -> {
+                long cpu = TenantMeter.cpuTime();
+                long alloc = TenantMeter.allocated();
+                try{
+                    askVote(message);
+                    voteTime.since(submitted);
+                }finally{
+                    answering.remove(message.filename);
+                    meter.charge(cpu, alloc);
+                }
+            });
+        }catch(RejectedExecutionException e){
+            // too many prompts pending, refuse rather than stall
+            String[] imgs = message.imgs.toArray(new String[0]);
+            if(presumedAbort == false){
+                logHandler.writeLog(PL, log_name,
+                            LogRecord.vote(message.filename, false, imgs));
+            }
+            answers.voted(message.filename, message.imgs, false);
+            answering.remove(message.filename);
+            sendMessage(MessageType.VOTE, message.filename, false);
+        }
+    }
 
     /**
-     * check the vote of the usernode
+     * check the vote of the usernode, and lock the images of the collage
+     * in the same step as a YES vote
      * 
      * @param message message from server
      * @return true if the usernode approves the collage, false otherwise
@@ -62,36 +307,60 @@ public class UserNode implements ProjectLib.MessageHandling{
         if(usernode.equals(myId) == false){
             return false;
         }
-        // ignore duplicated vote request from the same collage
-        if(lock_list.containsKey(collage)){
-            return false;
-        }
-
         byte[] contents = message.contents;
-        LinkedList<String> imgs = message.imgs;
+        List<String> imgs = message.imgs;
 
-        // ask the user about the collage
-        boolean vote = PL.askUser(contents, 
-                                  imgs.toArray(new String[imgs.size()]));
-        // the user is not happy with the collage
-        if(vote == false){
+        // image in the collage already deleted or locked before, no need
+        // to bother the user
+        if(lock_table.conflicts(collage, imgs)){
             return false;
         }
-
-        // the user is happy with the collage
-        for(String img:imgs){
-            if(remove_list.contains(img)){
-                // image in the collage already deleted before
+        synchronized(voteState){
+            // ignore duplicated vote request from the same collage
+            if(lock_table.isHeld(collage)
+               || voting_list.add(collage) == false){
                 return false;
             }
-            for(String filename:lock_list.keySet()){
-                // image in the collage already locked before
-                if(lock_list.get(filename).contains(img)){
-                    return false;
+        }
+
+        // ask the user about the collage, unless the user answered the
+        // same collage lately
+        boolean vote = false;
+        long start = System.nanoTime();
+        try{
+            String key = ApprovalCache.enabled()
+                         ? ApprovalCache.key(contents, imgs) : null;
+            Boolean approved = key == null ? null : approvals.lookup(key);
+            if(approved != null){
+                vote = approved;
+            }
+            else{
+                vote = PL.askUser(contents, 
+                                  imgs.toArray(new String[imgs.size()]));
+                promptTime.since(start);
+                if(key != null){
+                    approved(key, vote);
+                }
+            }
+        }finally{
+            synchronized(voteState){
+                voting_list.remove(collage);
+                // the server gave up on the collage during the prompt
+                if(decided_list.remove(collage)){
+                    vote = false;
+                }
+                // the user is happy with the collage, lock all the images
+                // included unless another collage took one meanwhile
+                else if(vote == true){
+                    vote = lock_table.acquire(collage, imgs);
+                    if(vote){
+                        // decisions wait until the vote is logged
+                        logging_list.add(collage);
+                    }
                 }
             }
         }
-        return true;
+        return vote;
     }
 
     /**
@@ -101,39 +370,77 @@ public class UserNode implements ProjectLib.MessageHandling{
      */
     public void askVote(NewMessage message){
         String collage = message.filename;
-        LinkedList<String> imgs = message.imgs;
+        List<String> imgs = message.imgs;
 
-        // preparation for writing log
-        StringBuffer log_content = new StringBuffer();
-        log_content.append(collage);
-        for(String img:imgs){
-            log_content.append(";" + img);
-        }
+        // images to write in log
+        String[] log_imgs = imgs.toArray(new String[imgs.size()]);
 
-        
         if (checkVote(message) == false){// vote NO
-            // write log for the vote step
-            logHandler.writeLog(PL, log_name,
-                                "Vote;false;" + log_content.toString());
+            // write log for the vote step, recovery presumes abort anyway
+            if(presumedAbort == false){
+                logHandler.writeLog(PL, log_name,
+                                    LogRecord.vote(collage, false, log_imgs));
+            }
 
             // send vote to the server
-            sendMessage(2, collage, false);
+            answers.voted(collage, imgs, false);
+            sendMessage(MessageType.VOTE, collage, false);
         }
         
-        else{// vote YES
+        else{// vote YES, the images are locked
             // write log for the vote step
             logHandler.writeLog(PL,log_name,
-                                "Vote;true;" + log_content.toString());
-            // lock the images included
-            Set<String> locked_imgs = new HashSet<String>();
-            for(String img:imgs){
-                locked_imgs.add(img);
+                                LogRecord.vote(collage, true, log_imgs));
+            Boolean decided;
+            synchronized(voteState){
+                logging_list.remove(collage);
+                decided = deferred_decisions.remove(collage);
+            }
+            if(decided != null){
+                // the server gave up before hearing the vote, apply its
+                // decision now that it follows the vote in the log
+                acceptDecision(new NewMessage(collage, myId, decided,
+                                              MessageType.DECISION));
+                return;
             }
-            lock_list.put(collage, locked_imgs);
 
             // send vote to the server
-            sendMessage(2, collage, true);
+            answers.voted(collage, imgs, true);
+            sendMessage(MessageType.VOTE, collage, true);
+            if(presumedAbort){
+                awaitDecision(collage);
+            }
+        }
+    }
+
+    /**
+     * ask the server about a collage until its decision arrives
+     * 
+     * @param collage filename of the collage
+     */
+    private void awaitDecision(String collage){
+        TimerWheel.Timeout old = queryTimers.put(collage,
+                TimerWheel.shared.schedule(() -> queryDecision(collage),
+                                           queryMs, queryMs));
+        if(old != null){
+            old.cancel();
+        }
+    }
+
+    /**
+     * ask the server for the decision of a collage still locked
+     * 
+     * @param collage filename of the collage
+     */
+    private void queryDecision(String collage){
+        if(lock_table.isHeld(collage) == false){
+            TimerWheel.Timeout timer = queryTimers.remove(collage);
+            if(timer != null){
+                timer.cancel();
+            }
+            return;
         }
+        sendMessage(MessageType.DECISION_QUERY, collage, false);
     }
 
     /**
@@ -145,31 +452,65 @@ public class UserNode implements ProjectLib.MessageHandling{
         String collage = message.filename;
         boolean vote = message.vote;
 
+        Boolean applied = answers.decision(collage);
+        if(applied != null){
+            // applied before and the ack was lost, ack it again
+            if(applied || presumedAbort == false){
+                sendMessage(MessageType.ACK, collage, applied);
+            }
+            return;
+        }
+
+        TimerWheel.Timeout query = queryTimers.remove(collage);
+        if(query != null){
+            query.cancel();
+        }
+
+        String[] locked_imgs;
+        synchronized(voteState){
+            if(logging_list.contains(collage)){
+                // the YES vote is not durable yet, logging the decision
+                // first would let the recovery lock the images again
+                deferred_decisions.put(collage, vote);
+                return;
+            }
+            // unlock included images, a committed collage marks them
+            // removed in the same step so no other collage can lock them
+            locked_imgs = vote ? lock_table.commit(collage)
+                               : lock_table.release(collage);
+            // the user may still be thinking about it
+            if(locked_imgs == null && voting_list.contains(collage)){
+                decided_list.add(collage);
+            }
+        }
+
+        // under presumed abort an abort needs neither log nor ack
+        if(vote == false && presumedAbort){
+            answers.decided(collage, vote);
+            return;
+        }
+
         // no image need to lock for this collage
-        if(lock_list.containsKey(collage) == false) {
+        if(locked_imgs == null) {
             // send ack
-            sendMessage(4, collage, vote);
+            answers.decided(collage, vote);
+            sendMessage(MessageType.ACK, collage, vote);
             return;
         }
-        // write log for decision step
-        logHandler.writeLog(PL, log_name,
-                            "Decision;" + vote +";"+collage);
+        // write log for decision step, a commit names the images so
+        // the record is their tombstone
+        logHandler.writeLog(PL, log_name, LogRecord.decision(collage,
+                            vote, vote ? locked_imgs : null));
 
         if(vote == true){// commit the collage 
-            // remove included images from working directory
-            for(String img:lock_list.get(collage)) {
-                File file = new File(img);
-                remove_list.add(img);
-                file.delete();
-            }
-        }
-        else{// no commit and abort the collage
+            // remove included images from working directory later
+            ImageDeleter.shared.delete(dir, collage, locked_imgs,
+                                       this::purged);
         }
 
-        // unlock included images
-        lock_list.remove(collage);
         // send ack
-        sendMessage(4, collage, vote);
+        answers.decided(collage, vote);
+        sendMessage(MessageType.ACK, collage, vote);
     }
 
     /**
@@ -179,79 +520,162 @@ public class UserNode implements ProjectLib.MessageHandling{
      * @param filename filename of the collage
      * @param result the vote/ack of the usernode
      */
-    public void sendMessage(int type, String filename, boolean result){
+    public void sendMessage(MessageType type, String filename,
+                            boolean result){
 
         NewMessage message = new NewMessage(filename, myId, result, type);
-        byte[] body = logHandler.serialize(message);
+        byte[] body = MessageCodec.encode(message);
+
+        // votes and acks of many collages travel together
+        MessageBatcher.of(myId, PL).send("Server", body);
+    }
+
+    /**
+     * ask the server to resend the missing chunks of a collage
+     * 
+     * @param filename filename of the collage
+     * @param missing bitmap of the missing chunks
+     */
+    public void sendNack(String filename, byte[] missing){
+        NewMessage message = new NewMessage(filename, myId, false,
+                                            MessageType.CHUNK_NACK);
+        message.contents = missing;
+        byte[] body = MessageCodec.encode(message);
+        PL.sendMessage(new ProjectLib.Message("Server", body));
+        Metrics.sent(MessageType.CHUNK_NACK);
+    }
 
-        ProjectLib.Message msg = new ProjectLib.Message("Server", body);
-        PL.sendMessage(msg);
+    /**
+     * record that the images of a committed collage are gone, recovery
+     * need not delete them again
+     * 
+     * @param collage filename of the collage
+     */
+    private void purged(String collage){
+        logHandler.getWriter(PL, log_name).append(LogRecord.purged(collage));
+    }
+
+    /**
+     * remember an answer of the user, its record need not be durable
+     * before the vote since losing it only costs a prompt
+     * 
+     * @param key key of the collage
+     * @param vote the answer
+     */
+    private void approved(String key, boolean vote){
+        long now = System.currentTimeMillis();
+        approvals.put(key, vote, now);
+        logHandler.getWriter(PL, log_name)
+                  .append(LogRecord.approval(key, vote, now));
     }
 
     /**
      * recover from failure based on the log file
      */
-    public static void recoverFailure(List<String> logs){
+    public void recoverFailure(List<LogRecord> logs){
 
         if(logs == null ){// no log and no collage commit yet
             return;
         }
 
-        for(String line:logs){
-            String[] content = line.split(";");
-            // the current step to recover
-            String step = content[0];
-            // the status of the step
-             String status = content[1];
-            // the filename of the collage
-            String collage = content[2];
-
-            // failure after vote YES
-            if (step.equals("Vote") && status.equals("true")){
+        for(LogRecord record:logs){
+            recover(record);
+        }
+    }
+
+    /**
+     * rebuild the state a log record leaves behind
+     *
+     * @param record next record of the log
+     */
+    private void recover(LogRecord record){
+        // the filename of the collage
+        String collage = record.collage;
+
+        // answer the retransmissions as before the failure
+        if(record.kind == LogRecord.Kind.VOTE){
+            answers.voted(collage, Arrays.asList(record.items),
+                          record.flag);
+        }
+        else if(record.kind == LogRecord.Kind.DECISION){
+            answers.decided(collage, record.flag);
+        }
+        else if(record.kind == LogRecord.Kind.APPROVAL){
+            // the answers older than the ttl are dropped
+            approvals.put(collage, record.flag,
+                          Long.parseLong(record.items[0]));
+        }
+
+        // failure after vote YES
+        if (record.kind == LogRecord.Kind.VOTE && record.flag == true){
+            // a decision logged before the vote already settled it
+            if(decided_early.remove(collage) == false){
                 // relock the included images
-                Set<String> lockImage = new HashSet<String>();
-                lock_list.put(collage, lockImage);
-                for(int i = 3; i < content.length; i++){
-                    lockImage.add(content[i]);
+                lock_table.acquire(collage, Arrays.asList(record.items));
+            }
+        }
+        // failure after the decision received
+        else if(record.kind == LogRecord.Kind.DECISION){
+            // if the collage is aborted
+            if(record.flag == false){
+                // unlock included images 
+                if(lock_table.release(collage) == null){
+                    decided_early.add(collage);
                 }
             }
-            // failure after the decision received
-            else if(step.equals("Decision")){
-                // if the collage is aborted
-                if(status.equals("false") && lock_list.containsKey(collage)){
-                    // unlock included images 
-                    lock_list.remove(collage);
+            // if the collage is accpeted by all
+            else{
+                // unlock included images and mark them removed
+                String[] imgs = lock_table.commit(collage);
+                if(imgs == null){
+                    decided_early.add(collage);
                 }
-                // if the collage is accpeted by all
-                else if(status.equals("true")){
-                    // remove included images from working directory 
-                    for(String img:lock_list.get(collage)) {
-                        File file = new File(img);
-                        if(file.exists()){
-                            file.delete();
-                        }
-                        remove_list.add(img);
-                    }
-                    // unlock included images
-                    lock_list.remove(collage);
+                if(record.items.length > 0){
+                    imgs = record.items;
+                }
+                if(imgs != null){
+                    tombstones.put(collage, imgs);
                 }
             }
         }
+        // the images are already gone
+        else if(record.kind == LogRecord.Kind.PURGED){
+            tombstones.remove(collage);
+        }
+    }
+    
+    /**
+     * @return cpu and memory used by the usernode
+     */
+    public TenantMeter getMeter(){
+        return meter;
+    }
+
+    /**
+     * @return one line about the resources held by the usernode
+     */
+    public String report(){
+        return String.format("%s %s locked=%d prompts=%d assembling=%d "
+                             + "answers=%d/%d approvals=%d/%d", myId, meter,
+                             lock_table.lockedImages(),
+                             votePool.getActiveCount()
+                             + votePool.getQueue().size(),
+                             assembler.pending(), answers.getHits(),
+                             answers.getHits() + answers.getMisses(),
+                             approvals.getHits(),
+                             approvals.getHits() + approvals.getMisses());
     }
     
     public static void main ( String args[] ) throws Exception {
         if (args.length != 2) throw new Exception("Need 2 args: <port> <id>");
         UserNode UN = new UserNode(args[1]);
+        UN.start(Integer.parseInt(args[0]));
+        Metrics.start(args[1]);
 
-        // read the log and recover from failure
-        log_name = myId+".log";
-        List<String> logs = logHandler.readLog(log_name);
-        recoverFailure(logs);
-
-        PL = new ProjectLib( Integer.parseInt(args[0]), args[1], UN);
-
+        // the messages are delivered on the ProjectLib threads
         while(true){
+            LockSupport.park();
         }
     }
 
-}
\ No newline at end of file
+}
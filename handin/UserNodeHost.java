@@ -0,0 +1,65 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/* UserNodeHost class for running many usernodes in one jvm */
+public class UserNodeHost{
+    // time between two resource reports in ms, 0 for none
+    public static long reportMs = Long.getLong("host.reportMs", 10000L);
+
+    // the usernodes of this host
+    private final List<UserNode> nodes = new ArrayList<>();
+
+    /**
+     * start a usernode, its images and log are in the directory named
+     * after its id
+     *
+     * @param port port of the server
+     * @param id id of the usernode
+     */
+    public void add(int port, String id){
+        File dir = new File(id);
+        if(dir.isDirectory() == false){
+            dir.mkdirs();
+        }
+        UserNode node = new UserNode(id, dir);
+        node.start(port);
+        synchronized(nodes){
+            nodes.add(node);
+        }
+    }
+
+    /**
+     * print the cpu and memory each usernode used, and how well their
+     * messages were batched
+     */
+    public void report(){
+        synchronized(nodes){
+            for(UserNode node:nodes){
+                System.out.println(node.report());
+            }
+        }
+        System.out.println("batching " + MessageBatcher.report());
+    }
+
+    public static void main ( String args[] ) throws Exception {
+        if (args.length < 2){
+            throw new Exception("Need args: <port> <id> [<id>...]");
+        }
+        int port = Integer.parseInt(args[0]);
+        UserNodeHost host = new UserNodeHost();
+        for(int i = 1; i < args.length; i++){
+            host.add(port, args[i]);
+        }
+        Metrics.start("host");
+        if(reportMs > 0){
+            TimerWheel.shared.schedule(host::report, reportMs, reportMs);
+        }
+
+        // the messages are delivered on the ProjectLib threads
+        while(true){
+            LockSupport.park();
+        }
+    }
+}
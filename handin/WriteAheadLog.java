@@ -0,0 +1,525 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/* WriteAheadLog class for the segmented binary log of a node */
+public class WriteAheadLog{
+    // size of a pre-allocated segment file
+    public static long segmentSize = Long.getLong("wal.segmentSize",
+                                                  1L << 20);
+    // bytes of the frame header: payload length and crc
+    private static final int HEADER = 8;
+
+    // bytes of valid frames read by scans
+    private static final LongAdder scannedBytes =
+                                    Metrics.counter("log.scan.bytes");
+    // torn or corrupt frames that ended a scan
+    private static final LongAdder tornFrames =
+                                    Metrics.counter("log.scan.torn");
+    // segments deleted on open because they followed a torn one
+    private static final LongAdder droppedSegments =
+                                    Metrics.counter("log.open.dropped");
+    // time taken by a whole scan
+    private static final LatencyHistogram scanTime =
+                                    Metrics.histogram("log.scan");
+    // read speed of the last scan in bytes per second
+    private static volatile long lastScanRate = 0;
+    static{
+        Metrics.gauge("log.scan.bytesPerSec", () -> lastScanRate);
+    }
+    // unmaps a mapped segment at once, null if the jvm does not allow it
+    private static final unmapper UNMAP = unmapper.find();
+
+    // log name, segments are named <name>.<seq>
+    private final String name;
+    // sequence number of the open segment
+    private long seq = 0;
+    // channel of the open segment
+    private FileChannel channel = null;
+    // size of the open segment file
+    private long capacity = 0;
+    // reusable encoding buffer
+    private ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * WriteAheadLog constructor, opens the tail segment for append, the
+     * segments after the first torn one are deleted
+     *
+     * @param Name log name
+     */
+    public WriteAheadLog(String Name) throws IOException{
+        this.name = Name;
+        long[] seqs = segments(Name);
+        if(seqs.length == 0){
+            openSegment(1);
+        }
+        else{
+            // a scan ends at the first torn frame, so a crash while
+            // rolling leaves a torn segment whose successors are never
+            // read: new records go after its last valid frame instead
+            int open = seqs.length - 1;
+            for(int i = 0; i < seqs.length - 1; i++){
+                if(isClean(segmentFile(seqs[i])) == false){
+                    open = i;
+                    break;
+                }
+            }
+            if(open < seqs.length - 1){
+                dropAfter(seqs, open);
+            }
+            seq = seqs[open];
+            RandomAccessFile raf =
+                            new RandomAccessFile(segmentFile(seq), "rw");
+            channel = raf.getChannel();
+            capacity = Math.max(raf.length(), segmentSize);
+            // drop a torn tail so new records start on a clean frame
+            long end = validEnd(channel);
+            zeroFrom(end);
+            channel.position(end);
+        }
+    }
+
+    /**
+     * append records to the open segment, not yet synced
+     *
+     * @param records records to append
+     */
+    public synchronized void append(List<LogRecord> records)
+                                                        throws IOException{
+        buf.clear();
+        for(LogRecord record:records){
+            int size = record.encodedSize();
+            long end = channel.position() + buf.position();
+            if(end + HEADER + size > capacity && end > 0){
+                // the segment is full
+                writeOut();
+                roll();
+            }
+            if(buf.remaining() < HEADER + size){
+                writeOut();
+                if(buf.capacity() < HEADER + size){
+                    buf = ByteBuffer.allocateDirect(HEADER + size);
+                }
+            }
+            frame(record, size);
+        }
+        writeOut();
+    }
+
+    /**
+     * @return sequence number of the open segment
+     */
+    public synchronized long currentSegment(){
+        return seq;
+    }
+
+    /**
+     * close the open segment and continue in a new one
+     *
+     * @return sequence number of the new segment
+     */
+    public synchronized long roll() throws IOException{
+        channel.close();
+        openSegment(seq + 1);
+        return seq;
+    }
+
+    /**
+     * read every valid record of the log in order
+     *
+     * @param name log name
+     * @return records up to the first torn or corrupt frame
+     */
+    public static List<LogRecord> readAll(String name){
+        return readFrom(name, 0);
+    }
+
+    /**
+     * read the valid records of the segments from a sequence number on
+     *
+     * @param name log name
+     * @param from first segment to read
+     * @return records up to the first torn or corrupt frame
+     */
+    public static List<LogRecord> readFrom(String name, long from){
+        List<LogRecord> records = new ArrayList<>();
+        scan(name, from, records::add);
+        return records;
+    }
+
+    /**
+     * pass the valid records of the segments from a sequence number on
+     * to a consumer, each segment is mapped and decoded in place so the
+     * memory used does not grow with the log
+     *
+     * @param name log name
+     * @param from first segment to read
+     * @param out receives the records in order
+     * @return number of records read, up to the first torn or corrupt
+     *         frame
+     */
+    public static long scan(String name, long from, Consumer<LogRecord> out){
+        long start = System.nanoTime();
+        long[] count = new long[1];
+        Consumer<LogRecord> counted = r -> {
+            count[0]++;
+            out.accept(r);
+        };
+        long bytes = 0;
+        for(long s:segments(name)){
+            if(s < from){
+                continue;
+            }
+            File file = segmentFile(name, s);
+            MappedByteBuffer data = null;
+            try(FileChannel ch = FileChannel.open(file.toPath(),
+                                                  StandardOpenOption.READ)){
+                data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                boolean clean = readFrames(data, counted);
+                bytes += data.position();
+                if(clean == false){
+                    // torn tail, nothing valid can follow it
+                    tornFrames.increment();
+                    System.err.println("log " + file + ": torn or corrupt "
+                                       + "record at offset "
+                                       + data.position()
+                                       + ", ignoring the rest of the log");
+                    break;
+                }
+            }catch(IOException e){
+                e.printStackTrace();
+                break;
+            }finally{
+                // the records are copies, a segment deleted by the next
+                // checkpoint must not stay mapped until a gc
+                unmap(data);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        scanTime.since(start);
+        scannedBytes.add(bytes);
+        // in double, bytes times 1e9 overflows a long past 9 GB
+        lastScanRate = elapsed > 0 ? (long)(bytes * 1e9 / elapsed) : 0;
+        return count[0];
+    }
+
+    /**
+     * @param name log name
+     * @return sorted sequence numbers of the segments on disk
+     */
+    public static long[] segments(String name){
+        File dir = new File(name).getAbsoluteFile().getParentFile();
+        String prefix = new File(name).getName() + ".";
+        String[] files = dir.list();
+        if(files == null){
+            return new long[0];
+        }
+        long[] seqs = new long[files.length];
+        int n = 0;
+        for(String f:files){
+            if(f.startsWith(prefix)){
+                try{
+                    seqs[n] = Long.parseLong(f.substring(prefix.length()));
+                    n++;
+                }catch(NumberFormatException e){
+                }
+            }
+        }
+        seqs = Arrays.copyOf(seqs, n);
+        Arrays.sort(seqs);
+        return seqs;
+    }
+
+    /**
+     * delete the segments older than a sequence number
+     *
+     * @param name log name
+     * @param before first segment to keep
+     * @return number of segments deleted
+     */
+    public static int deleteBefore(String name, long before){
+        int deleted = 0;
+        for(long s:segments(name)){
+            if(s < before && segmentFile(name, s).delete()){
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @param name log name
+     * @param s sequence number
+     * @return file of the segment
+     */
+    public static File segmentFile(String name, long s){
+        return new File(String.format("%s.%06d", name, s));
+    }
+
+    private File segmentFile(long s){
+        return segmentFile(name, s);
+    }
+
+    /**
+     * decode frames until the end of the data or a bad frame, leaving
+     * the buffer positioned after the last valid frame
+     *
+     * @param data contents of a segment
+     * @param out decoded records
+     * @return true if the segment ended cleanly
+     */
+    public static boolean readFrames(ByteBuffer data, List<LogRecord> out){
+        return readFrames(data, (Consumer<LogRecord>)out::add);
+    }
+
+    /**
+     * decode frames until the end of the data or a bad frame, leaving
+     * the buffer positioned after the last valid frame
+     *
+     * @param data contents of a segment
+     * @param out receives the decoded records
+     * @return true if the segment ended cleanly
+     */
+    public static boolean readFrames(ByteBuffer data,
+                                     Consumer<LogRecord> out){
+        CRC32 check = new CRC32();
+        while(data.remaining() >= HEADER){
+            int len = data.getInt(data.position());
+            if(len == 0){
+                // pre-allocated space after the last record
+                return allZero(data);
+            }
+            if(len < 0 || len > data.remaining() - HEADER){
+                return false;
+            }
+            int sum = data.getInt(data.position() + 4);
+            ByteBuffer payload = data.duplicate();
+            payload.position(data.position() + HEADER);
+            payload.limit(data.position() + HEADER + len);
+            check.reset();
+            check.update(payload.duplicate());
+            if((int)check.getValue() != sum){
+                return false;
+            }
+            try{
+                out.accept(LogRecord.decode(payload));
+            }catch(IllegalArgumentException e){
+                return false;
+            }
+            data.position(data.position() + HEADER + len);
+        }
+        return allZero(data);
+    }
+
+    private static boolean allZero(ByteBuffer data){
+        for(int i = data.position(); i < data.limit(); i++){
+            if(data.get(i) != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param ch channel of the tail segment
+     * @return offset just after the last valid frame
+     */
+    private static long validEnd(FileChannel ch) throws IOException{
+        MappedByteBuffer data =
+                    ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        try{
+            readFrames(data, r -> {});
+            return data.position();
+        }finally{
+            unmap(data);
+        }
+    }
+
+    /**
+     * @param file a segment
+     * @return true if every frame of the segment is valid
+     */
+    private static boolean isClean(File file) throws IOException{
+        try(FileChannel ch = FileChannel.open(file.toPath(),
+                                              StandardOpenOption.READ)){
+            MappedByteBuffer data =
+                    ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            try{
+                return readFrames(data, r -> {});
+            }finally{
+                unmap(data);
+            }
+        }
+    }
+
+    /**
+     * delete the segments after a torn one and sync their directory, so
+     * they cannot come back behind the records appended to it
+     *
+     * @param seqs sorted sequence numbers of the segments
+     * @param torn index of the torn segment
+     */
+    private void dropAfter(long[] seqs, int torn) throws IOException{
+        for(int i = torn + 1; i < seqs.length; i++){
+            File file = segmentFile(seqs[i]);
+            if(file.delete() == false){
+                throw new IOException("cannot delete " + file
+                                      + " after the torn segment "
+                                      + segmentFile(seqs[torn]));
+            }
+            System.err.println("log " + file + ": follows the torn segment "
+                               + segmentFile(seqs[torn]) + ", deleted");
+        }
+        droppedSegments.add(seqs.length - 1 - torn);
+        File dir = segmentFile(seqs[torn]).getAbsoluteFile().getParentFile();
+        try(FileChannel ch = FileChannel.open(dir.toPath(),
+                                              StandardOpenOption.READ)){
+            ch.force(true);
+        }
+    }
+
+    /**
+     * release the mapping of a segment, the buffer must not be used
+     * afterwards, left to the gc if the jvm does not allow it
+     *
+     * @param data the mapped segment, null for none
+     */
+    private static void unmap(MappedByteBuffer data){
+        if(data != null && UNMAP != null){
+            UNMAP.unmap(data);
+        }
+    }
+
+    /**
+     * overwrite the rest of the tail segment with zeros
+     *
+     * @param from offset of the first byte to clear
+     */
+    private void zeroFrom(long from) throws IOException{
+        ByteBuffer zeros = ByteBuffer.allocate(8192);
+        long pos = from;
+        long end = channel.size();
+        while(pos < end){
+            zeros.clear();
+            zeros.limit((int)Math.min(zeros.capacity(), end - pos));
+            pos += channel.write(zeros, pos);
+        }
+    }
+
+    /**
+     * create and pre-allocate a new segment file
+     *
+     * @param s sequence number of the segment
+     */
+    private void openSegment(long s) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(s), "rw");
+        raf.setLength(segmentSize);
+        seq = s;
+        channel = raf.getChannel();
+        capacity = segmentSize;
+        channel.position(0);
+    }
+
+    /**
+     * put a length-prefixed, crc-checked frame into the buffer
+     *
+     * @param record record to encode
+     * @param size encoded size of the record payload
+     */
+    private void frame(LogRecord record, int size){
+        putFrame(buf, record, size, crc);
+    }
+
+    /**
+     * put a length-prefixed, crc-checked frame into a buffer
+     *
+     * @param dst destination buffer
+     * @param record record to encode
+     * @param size encoded size of the record payload
+     * @param sum crc instance to use
+     */
+    public static void putFrame(ByteBuffer dst, LogRecord record, int size,
+                                CRC32 sum){
+        int start = dst.position();
+        dst.putInt(size);
+        dst.putInt(0);
+        record.encode(dst);
+        ByteBuffer payload = dst.duplicate();
+        payload.position(start + HEADER);
+        payload.limit(dst.position());
+        sum.reset();
+        sum.update(payload);
+        dst.putInt(start + 4, (int)sum.getValue());
+    }
+
+    /**
+     * @param record record to frame
+     * @return bytes taken by the framed record
+     */
+    public static int frameSize(LogRecord record){
+        return HEADER + record.encodedSize();
+    }
+
+    /**
+     * write the buffered frames to the open segment
+     */
+    private void writeOut() throws IOException{
+        buf.flip();
+        while(buf.hasRemaining()){
+            channel.write(buf);
+        }
+        if(channel.position() > capacity){
+            capacity = channel.position();
+        }
+        buf.clear();
+    }
+
+    /* unmapper class for releasing a mapping through the jdk cleaner */
+    private static class unmapper{
+        // the sun.misc.Unsafe instance
+        private final Object unsafe;
+        // its invokeCleaner(ByteBuffer) method
+        private final Method invokeCleaner;
+
+        private unmapper(Object u, Method m){
+            this.unsafe = u;
+            this.invokeCleaner = m;
+        }
+
+        /**
+         * @return the unmapper, null if the jvm has no cleaner to call
+         */
+        static unmapper find(){
+            try{
+                Class<?> c = Class.forName("sun.misc.Unsafe");
+                Field f = c.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                return new unmapper(f.get(null),
+                        c.getMethod("invokeCleaner", ByteBuffer.class));
+            }catch(ReflectiveOperationException | RuntimeException e){
+                return null;
+            }
+        }
+
+        void unmap(MappedByteBuffer data){
+            try{
+                invokeCleaner.invoke(unsafe, data);
+            }catch(ReflectiveOperationException | RuntimeException e){
+                // the mapping goes away with the buffer
+            }
+        }
+    }
+}
@@ -1,88 +1,81 @@
 import java.io.*;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /* logHandler class for processing the log file */
 public class logHandler{
 
+    // one group commit writer per log file
+    private static ConcurrentHashMap<String,GroupCommitLog> writers =
+                                        new ConcurrentHashMap<>();
+    // time a caller waits for its record to be durable
+    private static final LatencyHistogram writeTime =
+                                    Metrics.histogram("log.write");
+
     /**
-     * serialize the message to bytes
+     * write log and flush the data to disk, sharing the fsync with
+     * every record written concurrently to the same log
      * 
-     * @param obj message instance
-     * @return serialized message bytes
+     * @param PL NodeLib instance
+     * @param dest  log name on disk
+     * @param content record to write in log
      */
-    public static byte[] serialize(Object obj){
-        try(ByteArrayOutputStream b = new ByteArrayOutputStream()){
-            try(ObjectOutputStream o = new ObjectOutputStream(b)){
-                o.writeObject(obj);
-            }catch(IOException e){
-            }
-            return b.toByteArray();
-        } catch (IOException e) {
+    public static void writeLog(NodeLib PL,String dest, LogRecord content){
+        long start = System.nanoTime();
+        try {
+            getWriter(PL, dest).write(content);
+            writeTime.since(start);
+        }catch (IOException e){
+            e.printStackTrace();
         }
-        return null;
     }
 
     /**
-     * deserialize bytes to message
+     * get the group commit writer of the log file
      * 
-     * @param bytes message in bytes
-     * @return message instance
+     * @param PL NodeLib instance
+     * @param dest log name on disk
+     * @return the writer of the log
      */
-    public static NewMessage deserialize(byte[] bytes){
-        try(ByteArrayInputStream b = new ByteArrayInputStream(bytes)){
-            try(ObjectInputStream o = new ObjectInputStream(b)){
-                return (NewMessage)o.readObject();
-            }catch(ClassNotFoundException e){
-            }
-        }catch(IOException e){
-        }
-        return null;
+    public static GroupCommitLog getWriter(NodeLib PL, String dest){
+        return writers.computeIfAbsent(dest, d -> new GroupCommitLog(PL, d));
     }
 
+
     /**
-     * write log and flush the data to disk
+     * read log records in the order they were written
      * 
-     * @param PL ProjectLib instance
-     * @param dest  filename on disk
-     * @param content contents to write in log
+     * @param dest the log name on disk
+     * @return records in the log, up to a torn tail
      */
-    public static void writeLog(ProjectLib PL,String dest, String content){
-        try (BufferedWriter b = 
-                            new BufferedWriter(new FileWriter(dest, true))){
-            b.write(String.format("%s\n", content));
-            b.flush();
-            b.close();
-        }catch (IOException e){
-            e.printStackTrace();
-        }
-        PL.fsync();
+    public static List<LogRecord> readLog(String dest){
+        return WriteAheadLog.readAll(dest);
     }
 
+    /**
+     * read log records written after a checkpoint
+     * 
+     * @param dest the log name on disk
+     * @param from first log segment not covered by the checkpoint
+     * @return records in the log, up to a torn tail
+     */
+    public static List<LogRecord> readLog(String dest, long from){
+        return WriteAheadLog.readFrom(dest, from);
+    }
 
     /**
-     * read log and format the contents
+     * pass the log records written after a checkpoint to a consumer
+     * without reading the whole log into memory
      * 
-     * @param dest the filename on disk
-     * @return cotents in log file
+     * @param dest the log name on disk
+     * @param from first log segment not covered by the checkpoint
+     * @param out receives the records in order
+     * @return number of records, up to a torn tail
      */
-    public static List<String> readLog(String dest){
-        List<String> strings = new ArrayList<String>();
-        Scanner fileScanner = null;
-        File file=new File(dest);
-        if (file.exists()){
-            try{
-                fileScanner = new Scanner(file);
-                while (fileScanner.hasNext()){
-                    strings.add(fileScanner.next());
-                }
-                fileScanner.close();
-            }catch (FileNotFoundException e){
-                e.printStackTrace();
-            }
-        }
-        return strings;
+    public static long scanLog(String dest, long from,
+                               Consumer<LogRecord> out){
+        return WriteAheadLog.scan(dest, from, out);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+import collage.jmh.Workload;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+
+/* CheckVoteWork class for a usernode vote with a large lock table */
+public class CheckVoteWork implements Workload{
+    // usernode under test
+    private final UserNode node;
+    // its lock table
+    private final LockTable table;
+    // directory of the usernode
+    private final File dir;
+    // requests cycled through by the runs
+    private final NewMessage[] requests = new NewMessage[1024];
+    // next request to use
+    private int next = 0;
+
+    /**
+     * @param param number of locked images, then ":free" for requests
+     *              with free images or ":conflict" for locked ones
+     */
+    public CheckVoteWork(String param) throws Exception{
+        String[] p = param.split(":");
+        int locked = Integer.parseInt(p[0]);
+        boolean free = p[1].equals("free");
+
+        // every run asks the stub user, the requests repeat
+        ApprovalCache.capacity = 0;
+        dir = Files.createTempDirectory("checkvote").toFile();
+        node = new UserNode("bench", dir);
+        set(node, "PL", StubLib.create());
+        table = (LockTable)get(node, "lock_table");
+
+        // pending collages holding 4 images each
+        int collages = locked / 4;
+        for(int c = 0; c < collages; c++){
+            NewMessage held = request("held-" + c, "held-" + c);
+            table.acquire(held.filename, held.imgs);
+        }
+        for(int i = 0; i < requests.length; i++){
+            requests[i] = free ? request("vote-" + i, "free-" + i)
+                               : request("vote-" + i,
+                                         "held-" + (i % collages));
+        }
+    }
+
+    /**
+     * @return a vote request for 4 images of the usernode
+     */
+    private static NewMessage request(String collage, String prefix){
+        NewMessage m = new NewMessage(collage, new byte[16], "bench",
+                                      prefix + "-0.jpg",
+                                      MessageType.VOTE_REQUEST);
+        for(int i = 1; i < 4; i++){
+            m.addImg(prefix + "-" + i + ".jpg");
+        }
+        return m;
+    }
+
+    @Override
+    public Object run(){
+        NewMessage request = requests[next];
+        next = (next + 1) & (requests.length - 1);
+        boolean vote = node.checkVote(request);
+        if(vote){
+            // give the images back for the next round
+            table.release(request.filename);
+        }
+        return vote;
+    }
+
+    @Override
+    public void close(){
+        dir.delete();
+    }
+
+    private static Object get(Object o, String field) throws Exception{
+        Field f = o.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        return f.get(o);
+    }
+
+    private static void set(Object o, String field, Object value)
+                                                        throws Exception{
+        Field f = o.getClass().getDeclaredField(field);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+}
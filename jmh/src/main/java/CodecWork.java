@@ -0,0 +1,54 @@
+import collage.jmh.Workload;
+import java.nio.ByteBuffer;
+
+/* CodecWork class for encoding and decoding a message or a log record */
+public class CodecWork implements Workload{
+    // true for the message codec, false for the log record codec
+    private final boolean message;
+    // true to encode, false to decode
+    private final boolean encode;
+
+    private final NewMessage request;
+    private final byte[] requestBytes;
+    private final LogRecord record;
+    private final ByteBuffer recordBuf;
+
+    /**
+     * @param param "message" or "record", then ":encode" or ":decode"
+     */
+    public CodecWork(String param){
+        String[] p = param.split(":");
+        this.message = p[0].equals("message");
+        this.encode = p[1].equals("encode");
+
+        // a vote request with a few images and inline contents
+        request = new NewMessage("collage-0001.jpg", new byte[2048], "u17",
+                                 "img-0.jpg", MessageType.VOTE_REQUEST);
+        for(int i = 1; i < 4; i++){
+            request.addImg("img-" + i + ".jpg");
+        }
+        requestBytes = MessageCodec.encode(request);
+
+        String[] sources = new String[8];
+        for(int i = 0; i < sources.length; i++){
+            sources[i] = "u" + (i % 3) + ":img-" + i + ".jpg";
+        }
+        record = LogRecord.startCommit("collage-0001.jpg", sources);
+        recordBuf = ByteBuffer.allocate(record.encodedSize());
+        record.encode(recordBuf);
+    }
+
+    @Override
+    public Object run() throws Exception{
+        if(message){
+            return encode ? MessageCodec.encode(request)
+                          : MessageCodec.decode(requestBytes);
+        }
+        recordBuf.clear();
+        if(encode){
+            record.encode(recordBuf);
+            return recordBuf;
+        }
+        return LogRecord.decode(recordBuf);
+    }
+}
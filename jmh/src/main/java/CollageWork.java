@@ -0,0 +1,27 @@
+import collage.jmh.Workload;
+
+/* CollageWork class for building a collage from many sources */
+public class CollageWork implements Workload{
+    // sources of the collage
+    private final String[] sources;
+    // contents of the collage
+    private final byte[] contents = new byte[4096];
+
+    /**
+     * @param param number of source images
+     */
+    public CollageWork(String param){
+        int count = Integer.parseInt(param);
+        // about 10 images per usernode
+        int users = Math.max(1, count / 10);
+        sources = new String[count];
+        for(int i = 0; i < count; i++){
+            sources[i] = "u" + (i % users) + ":img-" + i + ".jpg";
+        }
+    }
+
+    @Override
+    public Object run(){
+        return new CollageProcess(null, "collage.jpg", contents, sources);
+    }
+}
@@ -0,0 +1,67 @@
+import collage.jmh.Workload;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/* RecoveryWork class for replaying a generated server log */
+public class RecoveryWork implements Workload{
+    // records to replay
+    private final List<LogRecord> records = new ArrayList<>();
+    // true to read the records from the log segments every run
+    private final boolean read;
+    // directory and name of the generated log
+    private File dir = null;
+    private String name = null;
+
+    /**
+     * @param param number of records, then ":replay" or ":read"
+     */
+    public RecoveryWork(String param) throws Exception{
+        String[] p = param.split(":");
+        int count = Integer.parseInt(p[0]);
+        this.read = p[1].equals("read");
+
+        // one collage in five is aborted and the others committed, each
+        // ends with its COMMITTED record, so the replay ends with nothing
+        // in flight and no messages to resend
+        for(int c = 0; records.size() < count; c++){
+            String collage = "collage-" + c + ".jpg";
+            String[] sources = new String[4];
+            for(int i = 0; i < sources.length; i++){
+                sources[i] = "u" + ((c + i) % 64) + ":img-" + c + "-" + i
+                             + ".jpg";
+            }
+            records.add(LogRecord.startCommit(collage, sources));
+            records.add(LogRecord.decision(collage, c % 5 != 0));
+            records.add(LogRecord.committed(collage));
+        }
+        if(read){
+            dir = Files.createTempDirectory("recovery").toFile();
+            name = new File(dir, "Server.log").getPath();
+            WriteAheadLog wal = new WriteAheadLog(name);
+            for(int i = 0; i < records.size(); i += 1024){
+                wal.append(records.subList(i,
+                           Math.min(records.size(), i + 1024)));
+            }
+        }
+    }
+
+    @Override
+    public Object run(){
+        List<LogRecord> logs = read ? logHandler.readLog(name) : records;
+        Server.recoverFailure(logs);
+        return logs;
+    }
+
+    @Override
+    public void close(){
+        if(dir == null){
+            return;
+        }
+        for(File f:dir.listFiles()){
+            f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,51 @@
+import collage.jmh.Workload;
+import java.io.File;
+import java.nio.file.Files;
+
+/* WriteLogWork class for durable log writes through logHandler */
+public class WriteLogWork implements Workload{
+    // directory of the benchmark log
+    private final File dir;
+    // name of the benchmark log
+    private final String name;
+    // stub ProjectLib doing the fsync
+    private final StubLib lib = StubLib.create();
+    // record written by every call
+    private final LogRecord record = LogRecord.vote("collage-0001.jpg", true,
+                                    new String[]{"img-0.jpg", "img-1.jpg"});
+
+    /**
+     * @param fsync "stub" for a free fsync, "disk" to force the log file
+     */
+    public WriteLogWork(String fsync) throws Exception{
+        dir = Files.createTempDirectory("writelog").toFile();
+        name = new File(dir, "bench.log").getPath();
+        if(fsync.equals("disk")){
+            // the segment in use, every reset starts a new one
+            lib.syncFiles(WriteAheadLog.segmentFile(name, 1));
+        }
+        logHandler.getWriter(lib, name);
+    }
+
+    @Override
+    public Object run(){
+        logHandler.writeLog(lib, name, record);
+        return record;
+    }
+
+    @Override
+    public void reset() throws Exception{
+        // keep the disk use of long runs flat
+        long segment = logHandler.getWriter(lib, name).roll();
+        WriteAheadLog.deleteBefore(name, segment);
+        lib.syncFiles(WriteAheadLog.segmentFile(name, segment));
+    }
+
+    @Override
+    public void close(){
+        for(File f:dir.listFiles()){
+            f.delete();
+        }
+        dir.delete();
+    }
+}
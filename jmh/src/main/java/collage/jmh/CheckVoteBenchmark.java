@@ -0,0 +1,48 @@
+package collage.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* CheckVoteBenchmark class for UserNode.checkVote with many locked images */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CheckVoteBenchmark{
+    // images locked by pending collages
+    @Param({"1000", "10000", "100000"})
+    public String locked;
+
+    private Workload free;
+    private Workload conflict;
+
+    @Setup
+    public void setup() throws Exception{
+        free = Workload.create("CheckVoteWork", locked + ":free");
+        conflict = Workload.create("CheckVoteWork", locked + ":conflict");
+    }
+
+    @TearDown
+    public void close() throws Exception{
+        free.close();
+        conflict.close();
+    }
+
+    /**
+     * a request whose images are free, the user is asked and says YES
+     */
+    @Benchmark
+    public Object approve() throws Exception{
+        return free.run();
+    }
+
+    /**
+     * a request with a locked image, refused before the user is asked
+     */
+    @Benchmark
+    public Object conflict() throws Exception{
+        return conflict.run();
+    }
+}
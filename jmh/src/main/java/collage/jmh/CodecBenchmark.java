@@ -0,0 +1,36 @@
+package collage.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* CodecBenchmark class for the wire and log record encodings */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark{
+    // vote request message, or START_COMMIT log record
+    @Param({"message", "record"})
+    public String format;
+
+    private Workload encode;
+    private Workload decode;
+
+    @Setup
+    public void setup() throws Exception{
+        encode = Workload.create("CodecWork", format + ":encode");
+        decode = Workload.create("CodecWork", format + ":decode");
+    }
+
+    @Benchmark
+    public Object encode() throws Exception{
+        return encode.run();
+    }
+
+    @Benchmark
+    public Object decode() throws Exception{
+        return decode.run();
+    }
+}
@@ -0,0 +1,29 @@
+package collage.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* CollageBenchmark class for building a CollageProcess from its sources */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollageBenchmark{
+    // source images of the collage
+    @Param({"10", "1000", "10000"})
+    public String sources;
+
+    private Workload build;
+
+    @Setup
+    public void setup() throws Exception{
+        build = Workload.create("CollageWork", sources);
+    }
+
+    @Benchmark
+    public Object construct() throws Exception{
+        return build.run();
+    }
+}
@@ -0,0 +1,48 @@
+package collage.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* RecoveryBenchmark class for Server.recoverFailure over generated logs */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class RecoveryBenchmark{
+    // records in the log
+    @Param({"10000", "100000", "1000000"})
+    public String records;
+
+    private Workload replay;
+    private Workload readAndReplay;
+
+    @Setup
+    public void setup() throws Exception{
+        replay = Workload.create("RecoveryWork", records + ":replay");
+        readAndReplay = Workload.create("RecoveryWork", records + ":read");
+    }
+
+    @TearDown
+    public void close() throws Exception{
+        replay.close();
+        readAndReplay.close();
+    }
+
+    /**
+     * replay records already in memory
+     */
+    @Benchmark
+    public Object replay() throws Exception{
+        return replay.run();
+    }
+
+    /**
+     * read the log segments and replay them
+     */
+    @Benchmark
+    public Object readAndReplay() throws Exception{
+        return readAndReplay.run();
+    }
+}
@@ -0,0 +1,42 @@
+package collage.jmh;
+
+/*
+ * Workload interface for one benchmarked operation. The server and usernode
+ * classes live in the default package, which a named package cannot import,
+ * so each workload is written in the default package and the benchmarks
+ * load it by name.
+ */
+public interface Workload{
+
+    /**
+     * run the operation once
+     *
+     * @return a result for the blackhole
+     */
+    Object run() throws Exception;
+
+    /**
+     * drop what the iterations so far left behind, like log segments
+     */
+    default void reset() throws Exception{
+    }
+
+    /**
+     * release files and threads of the workload
+     */
+    default void close() throws Exception{
+    }
+
+    /**
+     * create a workload of the default package
+     *
+     * @param name class name of the workload
+     * @param param parameter given to its constructor
+     * @return the workload
+     */
+    static Workload create(String name, String param) throws Exception{
+        return (Workload)Class.forName(name)
+                              .getConstructor(String.class)
+                              .newInstance(param);
+    }
+}
@@ -0,0 +1,39 @@
+package collage.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* WriteLogBenchmark class for logHandler.writeLog with each fsync kind */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteLogBenchmark{
+    // stub: fsync does nothing, disk: fsync forces the log file
+    @Param({"stub", "disk"})
+    public String fsync;
+
+    private Workload write;
+
+    @Setup
+    public void setup() throws Exception{
+        write = Workload.create("WriteLogWork", fsync);
+    }
+
+    @TearDown(Level.Iteration)
+    public void reset() throws Exception{
+        write.reset();
+    }
+
+    @TearDown
+    public void close() throws Exception{
+        write.close();
+    }
+
+    @Benchmark
+    public Object writeLog() throws Exception{
+        return write.run();
+    }
+}